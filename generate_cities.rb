@@ -269,7 +269,7 @@ File.open("tables/cities", "wb") do |f|
     # free list header row
     f.write([0, 0, "", 0, "", 0, "", 0].pack(ROW_FORMAT))
 
-    index = 0
+    index = 1 # row 0 is the free list header, so the first city is row 1
     client = Mysql2::Client.new(:host => "localhost", :username => "world", :database => "world")
     client.query("SELECT * FROM city").each do |row|
       fields = ["Name", "CountryCode", "District", "Population"].map do |key|
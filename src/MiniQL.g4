@@ -3,15 +3,23 @@ grammar MiniQL;
 statement: statementFragment ';' EOF;
 
 statementFragment
-  : 'SELECT ' ('*' | columnList) ' FROM ' tableName (' WHERE ' whereFilter = expression)? (' ORDER BY ' orderList = expressionList)? # selectStatement
-  | 'INSERT INTO ' tableName ' VALUES ' LPAREN literal (',' literal)* RPAREN # insertStatement
+  : 'SELECT ' ('*' | selectList) ' FROM ' tableName (' WHERE ' whereFilter = expression)? (' GROUP BY ' groupList = columnList)? (' ORDER BY ' orderList = expressionList)? (' LIMIT ' limit = INTEGER_LITERAL (' OFFSET ' offset = INTEGER_LITERAL)?)? # selectStatement
+  | 'INSERT INTO ' tableName ' VALUES ' valueList (',' valueList)* # insertStatement
   | 'DELETE FROM ' tableName (' WHERE ' whereFilter = expression)? # deleteStatement
   ;
 
 columnList: columnName (',' columnList)?;
+selectList: selectItem (',' selectList)?;
+selectItem
+  : columnName # columnItem
+  | function = aggregateFunction LPAREN ('*' | columnName) RPAREN # aggregateItem
+  ;
+aggregateFunction: 'COUNT' | 'SUM' | 'MIN' | 'MAX' | 'AVG';
 columnName: IDENTIFIER;
 tableName: IDENTIFIER;
 
+valueList: LPAREN literal (',' literal)* RPAREN;
+
 expressionList: expression (',' expressionList)?;
 
 expression
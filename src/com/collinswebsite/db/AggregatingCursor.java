@@ -0,0 +1,348 @@
+package com.collinswebsite.db;
+
+import com.collinswebsite.db.miniql.AggregateExpression;
+import com.collinswebsite.db.miniql.ColumnExpression;
+import com.collinswebsite.db.miniql.Expression;
+import com.collinswebsite.db.miniql.InvalidExpressionException;
+import com.collinswebsite.db.types.StringDataType;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+
+/**
+ * Groups the rows of another cursor by some of their columns and works out aggregates over each group, handing out one
+ * row per group once the other cursor has run out. The rows it hands out are laid out over columns of their own, one
+ * per output, in the order the outputs were given; see {@link #getColumns()}.
+ *
+ * Groups are found through an open addressing hash table, hashed and compared on the group columns' serialized values
+ * where they lie in each row, so a row that joins a group that already exists is never decoded or copied. A group's
+ * aggregates are kept as longs in one flat array.
+ *
+ * With no group columns there is exactly one group, even if there are no rows. There are no nulls, so the minimum,
+ * maximum and average of no rows are zero.
+ */
+public class AggregatingCursor implements Cursor {
+    private static final int INITIAL_CAPACITY = 64; // slots in the hash table, always a power of two
+    private static final int INITIAL_GROUPS = 16;
+
+    private final Cursor base;
+    private final List<Column> groupBy;
+    private final List<Expression> outputs;
+    private final List<Column> columns = new ArrayList<>(); // one per output
+    private final int rowSize;
+
+    // for each aggregate, what it is, where its value is within a row, and which of its group's accumulators it uses.
+    // the first accumulator of every group is its row count.
+    private final AggregateExpression.Function[] functions;
+    private final int[] valueOffsets;
+    private final int[] accumulatorIndexes;
+    private final int stride; // accumulators per group
+
+    // each slot holds a group number plus one, or zero if it's empty
+    private int[] slots = new int[INITIAL_CAPACITY];
+    private int[] slotHashes = new int[INITIAL_CAPACITY];
+    // per group, in the order they were found
+    private Row[] groupRows = new Row[INITIAL_GROUPS]; // the first row in each group, which its group values come from
+    private long[] accumulators;
+    private int groupCount = 0;
+
+    private boolean aggregated = false;
+    private int readHead = 0;
+
+    /**
+     * @param outputs What each result row holds: columns that are grouped by, and aggregates.
+     * @throws InvalidExpressionException if an aggregate can't be taken, or a column isn't grouped by.
+     */
+    public AggregatingCursor(Cursor base, List<Column> groupBy, List<Expression> outputs)
+            throws InvalidExpressionException {
+        this.base = base;
+        this.groupBy = groupBy;
+        this.outputs = outputs;
+
+        List<AggregateExpression> aggregates = new ArrayList<>();
+        int offset = Table.FREE_LINK_FIELD_SIZE;
+        for(Expression e : outputs) {
+            Column column;
+            if(e instanceof AggregateExpression) {
+                AggregateExpression a = (AggregateExpression) e;
+                a.validate();
+                aggregates.add(a);
+                column = new Column(a.getName(), a.getType());
+            } else if(e instanceof ColumnExpression && groupBy.contains(((ColumnExpression) e).getColumn())) {
+                Column grouped = ((ColumnExpression) e).getColumn();
+                column = new Column(grouped.getName(), grouped.getType());
+            } else {
+                throw new InvalidExpressionException("can't select a column that isn't grouped by");
+            }
+            column.setPosition(columns.size());
+            column.setOffset(offset);
+            offset += column.getType().getSize();
+            columns.add(column);
+        }
+        this.rowSize = offset;
+
+        functions = new AggregateExpression.Function[aggregates.size()];
+        valueOffsets = new int[aggregates.size()];
+        accumulatorIndexes = new int[aggregates.size()];
+        int accumulatorCount = 1;
+        for(int i = 0; i < aggregates.size(); i++) {
+            AggregateExpression a = aggregates.get(i);
+            functions[i] = a.getFunction();
+            valueOffsets[i] = a.getColumn() == null ? 0 : a.getColumn().getOffset();
+            accumulatorIndexes[i] = a.getFunction() == AggregateExpression.Function.COUNT ? 0 : accumulatorCount++;
+        }
+        this.stride = accumulatorCount;
+        this.accumulators = new long[INITIAL_GROUPS * stride];
+
+        if(groupBy.isEmpty()) {
+            addGroup(null);
+        }
+    }
+
+    /**
+     * @return The columns of the rows this cursor hands out.
+     */
+    public List<Column> getColumns() {
+        return columns;
+    }
+
+    @Override
+    public boolean isAtEnd() throws DeserializationException {
+        if(!aggregated && !aggregate()) {
+            return false;
+        }
+        return readHead >= groupCount;
+    }
+
+    @Override
+    public Row getNext() throws DeserializationException {
+        if(!aggregated && !aggregate()) {
+            return null;
+        }
+        if(readHead >= groupCount) {
+            return null;
+        }
+        Row r = makeRow(readHead);
+        groupRows[readHead++] = null; // let it go as soon as it's been handed out
+        return r;
+    }
+
+    @Override
+    public Table getTable() {
+        return base.getTable();
+    }
+
+    @Override
+    public CompletionStage<Void> await() {
+        if(!aggregated) {
+            return base.await(); // still waiting on input
+        }
+        return CompletableFuture.completedFuture(null);
+    }
+
+    @Override
+    public void setFilter(Expression filter) throws InvalidExpressionException {
+        base.setFilter(filter);
+    }
+
+    @Override
+    public void setProjection(Collection<Column> columns) {
+        // the rows handed out are built here, so all the base cursor has to give us is what they're built from
+        List<Column> needed = new ArrayList<>(groupBy);
+        for(Expression e : outputs) {
+            e.collectColumns(needed);
+        }
+        base.setProjection(needed);
+    }
+
+    @Override
+    public void close() {
+        base.close();
+    }
+
+    /**
+     * Adds whatever rows the base cursor has ready to their groups.
+     * @return false if the base cursor has more rows that aren't ready yet.
+     */
+    private boolean aggregate() throws DeserializationException {
+        while(!base.isAtEnd()) {
+            Row r = base.getNext();
+            if(r == null) {
+                if(base.isAtEnd()) {
+                    break;
+                }
+                return false;
+            }
+            accumulate(r);
+        }
+        aggregated = true;
+        return true;
+    }
+
+    private void accumulate(Row r) {
+        ByteBuffer data = r.getData();
+        int row = -r.getDataOffset(); // where the whole row image would start
+        int at = (groupBy.isEmpty() ? 0 : findGroup(r, data, row)) * stride;
+        accumulators[at]++;
+        for(int i = 0; i < functions.length; i++) {
+            int slot = at + accumulatorIndexes[i];
+            switch(functions[i]) {
+                case SUM:
+                case AVG:
+                    accumulators[slot] += data.getLong(row + valueOffsets[i]);
+                    break;
+                case MIN:
+                    accumulators[slot] = Math.min(accumulators[slot], data.getLong(row + valueOffsets[i]));
+                    break;
+                case MAX:
+                    accumulators[slot] = Math.max(accumulators[slot], data.getLong(row + valueOffsets[i]));
+                    break;
+                default:
+                    break; // counts come from the group's row count
+            }
+        }
+    }
+
+    /**
+     * Finds the group a row belongs in, starting a new one if there isn't one yet.
+     */
+    private int findGroup(Row r, ByteBuffer data, int row) {
+        int hash = hash(data, row);
+        int mask = slots.length - 1;
+        for(int i = hash & mask; ; i = (i + 1) & mask) {
+            int group = slots[i] - 1;
+            if(group < 0) {
+                group = addGroup(r);
+                slots[i] = group + 1;
+                slotHashes[i] = hash;
+                if(groupCount * 2 > slots.length) {
+                    growSlots();
+                }
+                return group;
+            }
+            Row other = groupRows[group];
+            if(slotHashes[i] == hash && sameGroup(data, row, other.getData(), -other.getDataOffset())) {
+                return group;
+            }
+        }
+    }
+
+    private int addGroup(Row r) {
+        if(groupCount == groupRows.length) {
+            groupRows = Arrays.copyOf(groupRows, groupCount * 2);
+            accumulators = Arrays.copyOf(accumulators, groupCount * 2 * stride);
+        }
+        int group = groupCount++;
+        groupRows[group] = r;
+        for(int i = 0; i < functions.length; i++) {
+            if(functions[i] == AggregateExpression.Function.MIN) {
+                accumulators[group * stride + accumulatorIndexes[i]] = Long.MAX_VALUE;
+            } else if(functions[i] == AggregateExpression.Function.MAX) {
+                accumulators[group * stride + accumulatorIndexes[i]] = Long.MIN_VALUE;
+            }
+        }
+        return group;
+    }
+
+    // keeps the table at most half full
+    private void growSlots() {
+        int[] oldSlots = slots;
+        int[] oldHashes = slotHashes;
+        slots = new int[oldSlots.length * 2];
+        slotHashes = new int[oldSlots.length * 2];
+        int mask = slots.length - 1;
+        for(int j = 0; j < oldSlots.length; j++) {
+            if(oldSlots[j] == 0) {
+                continue;
+            }
+            int i = oldHashes[j] & mask;
+            while(slots[i] != 0) {
+                i = (i + 1) & mask;
+            }
+            slots[i] = oldSlots[j];
+            slotHashes[i] = oldHashes[j];
+        }
+    }
+
+    /**
+     * @return How many bytes of a serialized value matter; the rest of a string's field may hold anything.
+     */
+    private static int valueLength(Column column, ByteBuffer data, int offset) {
+        if(column.getType() instanceof StringDataType) {
+            return 4 + data.getInt(offset);
+        }
+        return column.getType().getSize();
+    }
+
+    private int hash(ByteBuffer data, int row) {
+        int h = 1;
+        for(Column c : groupBy) {
+            int offset = row + c.getOffset();
+            int length = valueLength(c, data, offset);
+            for(int i = 0; i < length; i++) {
+                h = 31 * h + data.get(offset + i);
+            }
+        }
+        h *= 0x9E3779B9; // spread the bits, since only the low ones pick the slot
+        return h ^ (h >>> 16);
+    }
+
+    private boolean sameGroup(ByteBuffer data, int row, ByteBuffer other, int otherRow) {
+        for(Column c : groupBy) {
+            int offset = row + c.getOffset();
+            int otherOffset = otherRow + c.getOffset();
+            int length = valueLength(c, data, offset);
+            if(valueLength(c, other, otherOffset) != length) {
+                return false;
+            }
+            for(int i = 0; i < length; i++) {
+                if(data.get(offset + i) != other.get(otherOffset + i)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private Row makeRow(int group) throws DeserializationException {
+        ByteBuffer image = ByteBuffer.allocate(rowSize);
+        long count = accumulators[group * stride];
+        int aggregate = 0;
+        try {
+            for(int i = 0; i < outputs.size(); i++) {
+                Column column = columns.get(i);
+                image.position(column.getOffset());
+                Expression e = outputs.get(i);
+                if(e instanceof ColumnExpression) {
+                    Column grouped = ((ColumnExpression) e).getColumn();
+                    column.getType().serialize(image, groupRows[group].getValueForColumn(grouped));
+                    continue;
+                }
+                long value = accumulators[group * stride + accumulatorIndexes[aggregate]];
+                switch(functions[aggregate++]) {
+                    case COUNT:
+                        image.putLong(count);
+                        break;
+                    case SUM:
+                        image.putLong(value);
+                        break;
+                    case MIN:
+                    case MAX:
+                        image.putLong(count == 0 ? 0 : value);
+                        break;
+                    case AVG:
+                        image.putDouble(count == 0 ? 0 : (double) value / count);
+                        break;
+                }
+            }
+        } catch(SerializationException ex) {
+            throw new DeserializationException();
+        }
+        return new Row(base.getTable(), columns, image);
+    }
+}
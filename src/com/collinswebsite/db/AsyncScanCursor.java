@@ -0,0 +1,146 @@
+package com.collinswebsite.db;
+
+import com.collinswebsite.db.miniql.Expression;
+import com.collinswebsite.db.miniql.InvalidExpressionException;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executor;
+
+/**
+ * Runs a blocking cursor on an I/O executor, so that whoever reads from this one never waits on the disk.
+ *
+ * Rows are fetched from the base cursor in batches and queued up here. A new batch is started whenever the queue runs
+ * low, so the next batch is usually on its way while the current one is being read. When the queue is empty,
+ * {@link #getNext()} returns null instead of blocking, and {@link #await()} completes once more rows have arrived.
+ */
+public class AsyncScanCursor implements Cursor {
+    private static final int BATCH_SIZE = 256;
+
+    private final Cursor base; // only touched by whichever fetch is running
+    private final Executor executor;
+
+    // guarded by this
+    private final ArrayDeque<Row> ready = new ArrayDeque<>();
+    private boolean fetching = false;
+    private boolean exhausted = false;
+    private Throwable error;
+    private CompletableFuture<Void> waiter;
+
+    public AsyncScanCursor(Cursor base, Executor executor) {
+        this.base = base;
+        this.executor = executor;
+    }
+
+    @Override
+    public synchronized boolean isAtEnd() throws DeserializationException {
+        checkError();
+        if(!ready.isEmpty()) {
+            return false;
+        }
+        if(exhausted) {
+            return true;
+        }
+        startFetch();
+        return false;
+    }
+
+    @Override
+    public synchronized Row getNext() throws DeserializationException {
+        checkError();
+        Row r = ready.poll();
+        if(ready.size() < BATCH_SIZE) {
+            startFetch();
+        }
+        return r;
+    }
+
+    @Override
+    public Table getTable() {
+        return base.getTable();
+    }
+
+    @Override
+    public synchronized CompletionStage<Void> await() {
+        if(!ready.isEmpty() || exhausted || error != null) {
+            return CompletableFuture.completedFuture(null);
+        }
+        if(waiter == null) {
+            waiter = new CompletableFuture<>();
+        }
+        startFetch();
+        return waiter;
+    }
+
+    @Override
+    public void setFilter(Expression filter) throws InvalidExpressionException {
+        base.setFilter(filter);
+    }
+
+    @Override
+    public void setProjection(Collection<Column> columns) {
+        base.setProjection(columns);
+    }
+
+    @Override
+    public void close() {
+        base.close();
+    }
+
+    // must be called with the lock held
+    private void checkError() throws DeserializationException {
+        if(error == null) {
+            return;
+        }
+        if(error instanceof DeserializationException) {
+            throw (DeserializationException) error;
+        }
+        throw new IllegalStateException("background fetch failed", error);
+    }
+
+    // must be called with the lock held
+    private void startFetch() {
+        if(fetching || exhausted || error != null) {
+            return;
+        }
+        fetching = true;
+        executor.execute(this::fetch);
+    }
+
+    private void fetch() {
+        List<Row> batch = new ArrayList<>(BATCH_SIZE);
+        boolean end = false;
+        Throwable failure = null;
+        try {
+            while(batch.size() < BATCH_SIZE && !base.isAtEnd()) {
+                Row r = base.getNext();
+                if(r != null) {
+                    batch.add(r);
+                }
+            }
+            end = base.isAtEnd();
+        } catch(Throwable t) {
+            failure = t;
+        }
+
+        CompletableFuture<Void> w;
+        synchronized(this) {
+            ready.addAll(batch);
+            exhausted = end;
+            error = failure;
+            fetching = false;
+            if(ready.size() < BATCH_SIZE) {
+                startFetch(); // still running low; go straight on to the next batch
+            }
+            w = waiter;
+            waiter = null;
+        }
+        if(w != null) {
+            w.complete(null);
+        }
+    }
+}
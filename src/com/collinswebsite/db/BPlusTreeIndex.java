@@ -0,0 +1,1088 @@
+package com.collinswebsite.db;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PrimitiveIterator;
+
+/**
+ * A B+tree over keys encoded by {@link TableIndex#encodeKey(Object)}, stored in a file of page-sized nodes. Every entry
+ * lives in a leaf and each leaf points to the next, so a range scan is a single descent followed by a walk along the
+ * leaves. Inner nodes hold separators: the smallest entry of the subtree to their right. Entries are ordered by key and
+ * then by value, and the payload, if there is one, is only stored in the leaves.
+ *
+ * A node stores the prefix its keys all share once, then a slot per entry pointing at the rest of its key, which is
+ * stored at the end of the page with its length in front. Keys only take up as much room as they need, so a node holds
+ * however many entries fit in its page rather than a fixed number. A node that overflows is split where the two halves
+ * come out closest in size, rather than at its middle entry, so one long key can't leave a half that doesn't fit. Splits
+ * work their way back up the tree, and deletes never merge nodes.
+ *
+ * Like {@link LongBTreeIndex}, writers take the index's lock and readers use optimistic lock coupling.
+ */
+public class BPlusTreeIndex implements TableIndex {
+    private static final int FORMAT_MAGIC = 0x42502B31; // "BP+1"
+    private static final int VALUE_SIZE = 8;
+    private static final int LOCATION_SIZE = 8;
+    private static final int HEADER_SIZE = 4 + 4 + 4 + LOCATION_SIZE; // magic, key size, payload size, root
+    private static final int ROOT_OFFSET = HEADER_SIZE - LOCATION_SIZE;
+    private static final long NO_NODE = -1;
+
+    private static final int NODE_SIZE = BufferPool.PAGE_SIZE;
+    private static final int NODE_HEADER_SIZE = 1 + 2 + 2 + LOCATION_SIZE; // is leaf, number of keys, prefix, next leaf
+    private static final int SLOT_SIZE = 2;
+    private static final int KEY_LENGTH_SIZE = 2;
+    // the most entries a node could hold, if every key were empty
+    private static final int MAX_ENTRIES = (NODE_SIZE - NODE_HEADER_SIZE) / (SLOT_SIZE + KEY_LENGTH_SIZE + VALUE_SIZE);
+    // every node has room for at least this many entries, however long their keys, so that an overflowing node can
+    // always be split into two that fit
+    private static final int MIN_ENTRIES = 4;
+
+    public static final double DEFAULT_FILL_FACTOR = 0.9;
+    private static final long SORT_MEMORY_BUDGET = 64 * 1024 * 1024;
+
+    private final Column column;
+    private final FileChannel channel;
+    private final BufferPool pool;
+    private final int keySize;
+    private final List<Column> payloadColumns;
+    private final int payloadSize;
+
+    // readers take no locks. they check each node's version before and after reading it, and start over if a writer
+    // changed it in the meantime.
+    private final NodeVersions versions = new NodeVersions();
+    private volatile long rootLocation; // only changed with the lock held
+
+    // guarded by this
+    private final List<Long> lockedNodes = new ArrayList<>(); // by the write in progress
+    private long nodeCount; // how many nodes the file has room for
+    private final ByteBuffer encodeBuffer = ByteBuffer.allocate(NODE_SIZE);
+
+    // cleared if a write fails part way through, since the tree may be missing the entry or half way through a change
+    private volatile boolean upToDate = true;
+
+    private static int compare(byte[] a, byte[] b) {
+        for(int i = 0; i < a.length && i < b.length; i++) {
+            if(a[i] != b[i]) {
+                // make unsigned
+                int aByte = a[i] & 0xFF;
+                int bByte = b[i] & 0xFF;
+                return aByte - bByte;
+            }
+        }
+        return a.length - b.length;
+    }
+
+    private static int commonPrefix(byte[] a, byte[] b) {
+        int prefix = 0;
+        while(prefix < a.length && prefix < b.length && a[prefix] == b[prefix]) {
+            prefix++;
+        }
+        return prefix;
+    }
+
+    /**
+     * A node is either a read-only view that decodes only what it is asked for straight out of its page, or, once
+     * {@link #materialize()} has been called, a fully decoded copy that can be modified and stored.
+     */
+    private class Node {
+        private final long location;
+        private int numKeys;
+        private boolean isLeaf;
+        private long next = NO_NODE; // leaves only
+
+        // the encoded node, until it is materialized
+        private byte[] page;
+        private ByteBuffer data;
+        private int prefixLength;
+
+        // the decoded node, once it is materialized. these have room for one entry more than could ever fit, so that
+        // a node can overflow before it is split.
+        private byte[][] keys;
+        private long[] values;
+        private byte[][] payloads;
+        private long[] children;
+
+        /**
+         * Creates an empty, materialized node.
+         */
+        public Node(long location, boolean isLeaf) {
+            this.location = location;
+            this.isLeaf = isLeaf;
+            this.keys = new byte[MAX_ENTRIES + 1][];
+            this.values = new long[MAX_ENTRIES + 1];
+            this.payloads = new byte[isLeaf ? MAX_ENTRIES + 1 : 0][];
+            this.children = new long[isLeaf ? 0 : MAX_ENTRIES + 2];
+        }
+
+        /**
+         * Creates a read-only view of an encoded node.
+         * @param length How many bytes of the page were actually read.
+         */
+        public Node(long location, byte[] page, int length) throws DeserializationException {
+            this.location = location;
+            this.page = page;
+            this.data = ByteBuffer.wrap(page);
+            this.isLeaf = data.get(0) != 0;
+            this.numKeys = data.getShort(1);
+            this.prefixLength = data.getShort(3);
+            this.next = data.getLong(5);
+            if(numKeys < 0 || numKeys > MAX_ENTRIES || prefixLength < 0 || getFixedEnd() > length) {
+                throw new DeserializationException();
+            }
+            for(int i = 0; i < numKeys; i++) {
+                int offset = getSuffixOffset(i);
+                if(offset < getFixedEnd() || offset + KEY_LENGTH_SIZE > length || data.getShort(offset) < 0
+                        || offset + KEY_LENGTH_SIZE + data.getShort(offset) > length) {
+                    throw new DeserializationException();
+                }
+            }
+        }
+
+        private int getSlotsOffset() {
+            return NODE_HEADER_SIZE + prefixLength;
+        }
+
+        private int getValuesOffset() {
+            return getSlotsOffset() + numKeys * SLOT_SIZE;
+        }
+
+        private int getPayloadsOffset() {
+            return getValuesOffset() + numKeys * VALUE_SIZE;
+        }
+
+        private int getChildrenOffset() {
+            return getPayloadsOffset() + (isLeaf ? numKeys * payloadSize : 0);
+        }
+
+        // where the keys' suffixes start
+        private int getFixedEnd() {
+            return getChildrenOffset() + (isLeaf ? 0 : (numKeys + 1) * LOCATION_SIZE);
+        }
+
+        private int getSuffixOffset(int i) {
+            return data.getShort(getSlotsOffset() + i * SLOT_SIZE) & 0xFFFF;
+        }
+
+        public byte[] getKey(int i) {
+            if(keys != null) {
+                return keys[i];
+            }
+            int offset = getSuffixOffset(i);
+            int suffixLength = data.getShort(offset);
+            byte[] key = new byte[prefixLength + suffixLength];
+            System.arraycopy(page, NODE_HEADER_SIZE, key, 0, prefixLength);
+            System.arraycopy(page, offset + KEY_LENGTH_SIZE, key, prefixLength, suffixLength);
+            return key;
+        }
+
+        public long getValue(int i) {
+            if(values != null) {
+                return values[i];
+            }
+            return data.getLong(getValuesOffset() + i * VALUE_SIZE);
+        }
+
+        /**
+         * @return The i-th entry's payload, or null if the index has none. Leaves only.
+         */
+        public byte[] getPayload(int i) {
+            if(payloadSize == 0) {
+                return null;
+            }
+            if(payloads != null) {
+                return payloads[i];
+            }
+            byte[] payload = new byte[payloadSize];
+            System.arraycopy(page, getPayloadsOffset() + i * payloadSize, payload, 0, payloadSize);
+            return payload;
+        }
+
+        public long getChild(int i) {
+            if(children != null) {
+                return children[i];
+            }
+            return data.getLong(getChildrenOffset() + i * LOCATION_SIZE);
+        }
+
+        /**
+         * Compares a key with the i-th key in this node, without decoding it.
+         */
+        public int compareKey(byte[] key, int i) {
+            if(keys != null) {
+                return compare(key, keys[i]);
+            }
+            int offset = getSuffixOffset(i) + KEY_LENGTH_SIZE;
+            int length = prefixLength + data.getShort(offset - KEY_LENGTH_SIZE);
+            for(int j = 0; j < key.length && j < length; j++) {
+                byte b = j < prefixLength ? page[NODE_HEADER_SIZE + j] : page[offset + j - prefixLength];
+                if(key[j] != b) {
+                    return (key[j] & 0xFF) - (b & 0xFF);
+                }
+            }
+            return key.length - length;
+        }
+
+        /**
+         * Compares an entry with the i-th entry in this node.
+         */
+        public int compareEntry(byte[] key, long value, int i) {
+            int r = compareKey(key, i);
+            if(r != 0) {
+                return r;
+            }
+            return Long.compare(value, getValue(i));
+        }
+
+        /**
+         * @return The index of the first entry that is not less than (key, value), or the number of keys if there
+         *         isn't one.
+         */
+        public int lowerBound(byte[] key, long value) {
+            int low = 0;
+            int high = numKeys;
+            while(low < high) {
+                int middle = (low + high) >>> 1;
+                if(compareEntry(key, value, middle) > 0) {
+                    low = middle + 1;
+                } else {
+                    high = middle;
+                }
+            }
+            return low;
+        }
+
+        /**
+         * @return Which child of this inner node the entry belongs under.
+         */
+        public int findChild(byte[] key, long value) {
+            int i = lowerBound(key, value);
+            // a separator is the first entry of the subtree to its right
+            if(i < numKeys && compareEntry(key, value, i) == 0) {
+                i++;
+            }
+            return i;
+        }
+
+        /**
+         * Decodes the whole node so that it can be modified.
+         */
+        public void materialize() {
+            if(keys != null) {
+                return;
+            }
+            byte[][] decodedKeys = new byte[MAX_ENTRIES + 1][];
+            long[] decodedValues = new long[MAX_ENTRIES + 1];
+            byte[][] decodedPayloads = new byte[isLeaf ? MAX_ENTRIES + 1 : 0][];
+            long[] decodedChildren = new long[isLeaf ? 0 : MAX_ENTRIES + 2];
+            for(int i = 0; i < numKeys; i++) {
+                decodedKeys[i] = getKey(i);
+                decodedValues[i] = getValue(i);
+                if(isLeaf) {
+                    decodedPayloads[i] = getPayload(i);
+                }
+            }
+            if(!isLeaf) {
+                for(int i = 0; i <= numKeys; i++) {
+                    decodedChildren[i] = getChild(i);
+                }
+            }
+            keys = decodedKeys;
+            values = decodedValues;
+            payloads = decodedPayloads;
+            children = decodedChildren;
+            page = null;
+            data = null;
+        }
+
+        /**
+         * @return How many bytes this materialized node takes up encoded.
+         */
+        public int getEncodedSize() {
+            int keyBytes = 0;
+            for(int i = 0; i < numKeys; i++) {
+                keyBytes += keys[i].length;
+            }
+            return encodedSize(isLeaf, numKeys, numKeys == 0 ? 0 : commonPrefix(keys[0], keys[numKeys - 1]), keyBytes);
+        }
+
+        // must be called with the lock held, on a materialized node that fits in a page
+        public void store() throws IOException {
+            lockNode(location);
+            encode(encodeBuffer);
+            pool.write(channel, getNodePosition(location), encodeBuffer);
+        }
+
+        /**
+         * Encodes this materialized node into a buffer and flips it, ready to be written out.
+         */
+        public void encode(ByteBuffer buffer) {
+            // keys are sorted, so whatever the first and last share, they all share
+            int prefix = numKeys == 0 ? 0 : commonPrefix(keys[0], keys[numKeys - 1]);
+
+            buffer.clear();
+            buffer.put((byte) (isLeaf ? 1 : 0));
+            buffer.putShort((short) numKeys);
+            buffer.putShort((short) prefix);
+            buffer.putLong(next);
+            if(numKeys > 0) {
+                buffer.put(keys[0], 0, prefix);
+            }
+            int slots = buffer.position();
+            buffer.position(slots + numKeys * SLOT_SIZE);
+            for(int i = 0; i < numKeys; i++) {
+                buffer.putLong(values[i]);
+            }
+            if(isLeaf && payloadSize > 0) {
+                for(int i = 0; i < numKeys; i++) {
+                    buffer.put(payloads[i], 0, payloadSize);
+                }
+            }
+            if(!isLeaf) {
+                for(int i = 0; i <= numKeys; i++) {
+                    buffer.putLong(children[i]);
+                }
+            }
+            for(int i = 0; i < numKeys; i++) {
+                buffer.putShort(slots + i * SLOT_SIZE, (short) buffer.position());
+                buffer.putShort((short) (keys[i].length - prefix));
+                buffer.put(keys[i], prefix, keys[i].length - prefix);
+            }
+            buffer.flip();
+        }
+    }
+
+    /**
+     * What a node that split hands up to its parent: the separator between its halves, and where the right half went.
+     */
+    private static class Split {
+        public final byte[] key;
+        public final long value;
+        public final long right;
+
+        public Split(byte[] key, long value, long right) {
+            this.key = key;
+            this.value = value;
+            this.right = right;
+        }
+    }
+
+    public BPlusTreeIndex(Column name, String fileName) throws IOException, DeserializationException {
+        this(name, Collections.emptyList(), fileName, BufferPool.DEFAULT);
+    }
+
+    /**
+     * Opens an index that stores a payload.
+     * @param payloadColumns The columns the index was created with, in the same order.
+     */
+    public BPlusTreeIndex(Column name, List<Column> payloadColumns, String fileName, BufferPool pool)
+            throws IOException, DeserializationException {
+        this(name, payloadColumns, FileSystems.getDefault().getPath("indices", fileName), pool);
+    }
+
+    private BPlusTreeIndex(Column column, List<Column> payloadColumns, Path path, BufferPool pool)
+            throws IOException, DeserializationException {
+        this.column = column;
+        this.payloadColumns = payloadColumns;
+        this.pool = pool;
+        this.channel = FileChannel.open(path,
+                StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+
+        ByteBuffer headerBuffer = ByteBuffer.allocate(HEADER_SIZE);
+        if(pool.read(channel, 0, headerBuffer) != HEADER_SIZE) {
+            channel.close();
+            throw new DeserializationException(new EOFException());
+        }
+        headerBuffer.flip();
+        if(headerBuffer.getInt() != FORMAT_MAGIC) {
+            channel.close();
+            throw new DeserializationException();
+        }
+        this.keySize = headerBuffer.getInt();
+        this.payloadSize = headerBuffer.getInt();
+        this.rootLocation = headerBuffer.getLong();
+        if(payloadSize != getPayloadSize(payloadColumns)) {
+            channel.close();
+            throw new DeserializationException(); // the file was created with other payload columns
+        }
+
+        this.nodeCount = (channel.size() - 1) / NODE_SIZE;
+        fetchNode(rootLocation); // make sure there's a tree there
+    }
+
+    /**
+     * Creates a new, empty index file, replacing any that is already there.
+     * @param payloadColumns The columns whose values each entry carries.
+     * @param keySize The longest key, in bytes, that the index will be able to hold.
+     */
+    public static BPlusTreeIndex create(Column column, List<Column> payloadColumns, String fileName, int keySize,
+                                        BufferPool pool) throws IOException, DeserializationException {
+        int payloadSize = getPayloadSize(payloadColumns);
+        int longestEntry = SLOT_SIZE + KEY_LENGTH_SIZE + keySize + VALUE_SIZE + Math.max(payloadSize, LOCATION_SIZE);
+        if(NODE_HEADER_SIZE + keySize + LOCATION_SIZE + MIN_ENTRIES * longestEntry > NODE_SIZE) {
+            throw new IllegalArgumentException("keys of " + keySize + " bytes with " + payloadSize
+                    + " bytes of payload are too long to index");
+        }
+
+        Path path = FileSystems.getDefault().getPath("indices", fileName);
+        try(FileChannel channel = FileChannel.open(path,
+                StandardOpenOption.WRITE,
+                StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(FORMAT_MAGIC);
+            header.putInt(keySize);
+            header.putInt(payloadSize);
+            header.putLong(0);
+            header.flip();
+            writeFully(channel, header, 0);
+
+            // the root starts out as an empty leaf at location 0
+            ByteBuffer node = ByteBuffer.allocate(NODE_HEADER_SIZE);
+            node.put((byte) 1);
+            node.putShort((short) 0);
+            node.putShort((short) 0);
+            node.putLong(NO_NODE);
+            node.flip();
+            writeFully(channel, node, getNodePosition(0));
+        }
+        return new BPlusTreeIndex(column, payloadColumns, path, pool);
+    }
+
+    /**
+     * Builds an index of a column from scratch, replacing any file that is already there. Every (key, row ID) pair is
+     * sorted, spilling to temporary files if they don't fit in memory, and the tree is then written out bottom-up in
+     * one sequential pass.
+     *
+     * Nothing may write to the table until the index has been built and registered with it.
+     * @param payloadColumns The columns whose values each entry carries.
+     * @param fillFactor How full to pack each node, from 0.5 to 1. Leaving room in them makes later inserts cheaper.
+     */
+    public static BPlusTreeIndex build(Table table, Column column, List<Column> payloadColumns, String fileName,
+                                       double fillFactor, BufferPool pool)
+            throws IOException, DeserializationException {
+        if(fillFactor < 0.5 || fillFactor > 1) {
+            throw new IllegalArgumentException("fill factor must be between 0.5 and 1");
+        }
+
+        BPlusTreeIndex index = create(column, payloadColumns, fileName, TableIndex.getMaxKeyLength(column.getType()),
+                pool);
+        try(IndexEntrySorter sorter = new IndexEntrySorter(SORT_MEMORY_BUDGET)) {
+            FullScanCursor cursor = table.createFullTableScanCursor();
+            List<Column> projection = new ArrayList<>(payloadColumns);
+            projection.add(column);
+            cursor.setProjection(projection);
+            Row r;
+            while((r = cursor.getNext()) != null) {
+                sorter.add(TableIndex.encodeKey(r.getValueForColumn(column)), r.getId(),
+                        r.serializeColumns(payloadColumns));
+            }
+            synchronized(index) {
+                index.load(sorter.sorted(), fillFactor);
+            }
+        }
+        return index;
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer src, long position) throws IOException {
+        while(src.hasRemaining()) {
+            position += channel.write(src, position);
+        }
+    }
+
+    private static int getPayloadSize(List<Column> payloadColumns) {
+        return payloadColumns.stream().mapToInt((c) -> c.getType().getSize()).sum();
+    }
+
+    private static long getNodePosition(long location) {
+        return (location + 1) * NODE_SIZE; // the header has the first page to itself
+    }
+
+    /**
+     * @return How many bytes a node with these entries takes up encoded.
+     * @param keyBytes The total length of the entries' keys, prefix and all.
+     */
+    private int encodedSize(boolean isLeaf, int numKeys, int prefix, int keyBytes) {
+        int entrySize = SLOT_SIZE + KEY_LENGTH_SIZE + VALUE_SIZE + (isLeaf ? payloadSize : LOCATION_SIZE);
+        return NODE_HEADER_SIZE + prefix + numKeys * entrySize + keyBytes - numKeys * prefix
+                + (isLeaf ? 0 : LOCATION_SIZE);
+    }
+
+    @Override
+    public Column getColumn() {
+        return column;
+    }
+
+    @Override
+    public List<Column> getPayloadColumns() {
+        return payloadColumns;
+    }
+
+    private Node fetchNode(long location) throws DeserializationException, IOException {
+        ByteBuffer page = ByteBuffer.allocate(NODE_SIZE);
+        int length = pool.read(channel, getNodePosition(location), page);
+        if(length < NODE_HEADER_SIZE) {
+            throw new DeserializationException(new EOFException());
+        }
+        return new Node(location, page.array(), length);
+    }
+
+    // must be called with the lock held
+    private Node fetchNodeForWrite(long location) throws DeserializationException, IOException {
+        Node node = fetchNode(location);
+        node.materialize();
+        return node;
+    }
+
+    /**
+     * Reads a node that a reader is about to use. A writer may be changing it at the same time, so it might not decode;
+     * that only counts as an error if the version shows that nothing was changing it.
+     * @return The node, or null if it changed while it was being read.
+     */
+    private Node fetchNodeOptimistically(long location, long version) throws DeserializationException, IOException {
+        Node node;
+        try {
+            node = fetchNode(location);
+        } catch(DeserializationException e) {
+            if(versions.validate(location, version)) {
+                throw e;
+            }
+            return null;
+        }
+        return versions.validate(location, version) ? node : null;
+    }
+
+    /**
+     * Where a search ended up: a leaf, the version it was read at, and the first entry in it not less than what was
+     * searched for.
+     */
+    private static class Position {
+        public final Node leaf;
+        public final long version;
+        public final int index;
+
+        public Position(Node leaf, long version, int index) {
+            this.leaf = leaf;
+            this.version = version;
+            this.index = index;
+        }
+    }
+
+    /**
+     * Finds the leaf that (key, value) belongs in, without taking any locks. Each child is only trusted if its parent
+     * hadn't changed by the time the child's version was read; otherwise, the search starts over from the root.
+     */
+    private Position search(byte[] key, long value) throws DeserializationException, IOException {
+        restart:
+        while(true) {
+            long location = rootLocation;
+            long version = versions.awaitUnlocked(location);
+            Node node = fetchNodeOptimistically(location, version);
+            if(node == null || rootLocation != location) {
+                continue;
+            }
+
+            while(!node.isLeaf) {
+                long childLocation = node.getChild(node.findChild(key, value));
+                long childVersion = versions.awaitUnlocked(childLocation);
+                if(!versions.validate(location, version)) {
+                    continue restart;
+                }
+                Node child = fetchNodeOptimistically(childLocation, childVersion);
+                if(child == null) {
+                    continue restart;
+                }
+                location = childLocation;
+                version = childVersion;
+                node = child;
+            }
+            return new Position(node, version, node.lowerBound(key, value));
+        }
+    }
+
+    @Override
+    public Iterator<Entry> range(byte[] lower, boolean lowerInclusive, byte[] upper, boolean upperInclusive) {
+        Scan scan = new Scan(lower, lowerInclusive, upper, upperInclusive);
+        return new Iterator<Entry>() {
+            @Override
+            public boolean hasNext() {
+                return scan.hasNext();
+            }
+
+            @Override
+            public Entry next() {
+                scan.take();
+                return scan.getEntry();
+            }
+        };
+    }
+
+    @Override
+    public PrimitiveIterator.OfLong rangeValues(byte[] lower, boolean lowerInclusive,
+                                                byte[] upper, boolean upperInclusive) {
+        Scan scan = new Scan(lower, lowerInclusive, upper, upperInclusive);
+        return new PrimitiveIterator.OfLong() {
+            @Override
+            public boolean hasNext() {
+                return scan.hasNext();
+            }
+
+            @Override
+            public long nextLong() {
+                scan.take();
+                return scan.getValue();
+            }
+        };
+    }
+
+    @Override
+    public void insert(byte[] key, long value) throws IOException {
+        insert(key, value, null);
+    }
+
+    @Override
+    public synchronized void insert(byte[] key, long value, byte[] payload) throws IOException {
+        if(key.length > keySize) {
+            throw new IOException("key is longer than the " + keySize + " bytes this index can hold");
+        }
+        if((payload == null ? 0 : payload.length) != payloadSize) {
+            throw new IllegalArgumentException("expected a payload of " + payloadSize + " bytes");
+        }
+        try {
+            Split split = insert(rootLocation, key, value, payload);
+            if(split != null) {
+                // the only way the tree gets taller: a new root over the two halves of the old one
+                Node newRoot = allocateNode(false);
+                newRoot.numKeys = 1;
+                newRoot.keys[0] = split.key;
+                newRoot.values[0] = split.value;
+                newRoot.children[0] = rootLocation;
+                newRoot.children[1] = split.right;
+                newRoot.store();
+                setRootLocation(newRoot.location);
+            }
+        } catch(IOException | DeserializationException e) {
+            upToDate = false;
+            throw e instanceof IOException ? (IOException) e : new IOException(e);
+        } finally {
+            unlockNodes();
+        }
+    }
+
+    /**
+     * Inserts an entry into the subtree under a node.
+     * @return How the node split, or null if it didn't have to.
+     */
+    private Split insert(long location, byte[] key, long value, byte[] payload)
+            throws IOException, DeserializationException {
+        Node node = fetchNodeForWrite(location);
+        if(node.isLeaf) {
+            int i = node.lowerBound(key, value);
+            System.arraycopy(node.keys, i, node.keys, i + 1, node.numKeys - i);
+            System.arraycopy(node.values, i, node.values, i + 1, node.numKeys - i);
+            System.arraycopy(node.payloads, i, node.payloads, i + 1, node.numKeys - i);
+            node.keys[i] = key;
+            node.values[i] = value;
+            node.payloads[i] = payload;
+            node.numKeys++;
+        } else {
+            int i = node.findChild(key, value);
+            Split split = insert(node.children[i], key, value, payload);
+            if(split == null) {
+                return null;
+            }
+            System.arraycopy(node.keys, i, node.keys, i + 1, node.numKeys - i);
+            System.arraycopy(node.values, i, node.values, i + 1, node.numKeys - i);
+            System.arraycopy(node.children, i + 1, node.children, i + 2, node.numKeys - i);
+            node.keys[i] = split.key;
+            node.values[i] = split.value;
+            node.children[i + 1] = split.right;
+            node.numKeys++;
+        }
+
+        if(node.numKeys <= MAX_ENTRIES && node.getEncodedSize() <= NODE_SIZE) {
+            node.store();
+            return null;
+        }
+        return split(node);
+    }
+
+    /**
+     * Splits an overflowing node in two, and stores both halves. Of every place it could be split, this picks the one
+     * where the bigger half is smallest.
+     *
+     * Keys are sorted, so a key inserted between two others shares their prefix, and only one inserted at either end
+     * can shorten the prefix of the node. Either way there is a split that leaves both halves no bigger than the node
+     * was before, plus an entry, split evenly; nodes have room for enough of the longest entries that both fit.
+     */
+    private Split split(Node node) throws IOException {
+        int n = node.numKeys;
+        int[] keyBytes = new int[n + 1]; // of the first i keys
+        for(int i = 0; i < n; i++) {
+            keyBytes[i + 1] = keyBytes[i] + node.keys[i].length;
+        }
+
+        // leaves keep every entry, and the separator is a copy of the right half's first one. inner nodes hand the
+        // entry they split at up instead.
+        int rightStart = node.isLeaf ? 0 : 1;
+        int best = -1;
+        int bestSize = Integer.MAX_VALUE;
+        for(int middle = 1; middle + rightStart < n; middle++) {
+            int left = encodedSize(node.isLeaf, middle, commonPrefix(node.keys[0], node.keys[middle - 1]),
+                    keyBytes[middle]);
+            int first = middle + rightStart;
+            int right = encodedSize(node.isLeaf, n - first, commonPrefix(node.keys[first], node.keys[n - 1]),
+                    keyBytes[n] - keyBytes[first]);
+            if(Math.max(left, right) < bestSize) {
+                best = middle;
+                bestSize = Math.max(left, right);
+            }
+        }
+        if(best == -1 || bestSize > NODE_SIZE) {
+            throw new IOException("node " + node.location + " can't be split into two that fit in a page");
+        }
+
+        int middle = best;
+        Node right = allocateNode(node.isLeaf);
+        Split split;
+        if(node.isLeaf) {
+            right.numKeys = n - middle;
+            System.arraycopy(node.keys, middle, right.keys, 0, right.numKeys);
+            System.arraycopy(node.values, middle, right.values, 0, right.numKeys);
+            System.arraycopy(node.payloads, middle, right.payloads, 0, right.numKeys);
+            right.next = node.next;
+            node.next = right.location;
+            split = new Split(right.keys[0], right.values[0], right.location);
+        } else {
+            right.numKeys = n - middle - 1;
+            System.arraycopy(node.keys, middle + 1, right.keys, 0, right.numKeys);
+            System.arraycopy(node.values, middle + 1, right.values, 0, right.numKeys);
+            System.arraycopy(node.children, middle + 1, right.children, 0, right.numKeys + 1);
+            split = new Split(node.keys[middle], node.values[middle], right.location);
+        }
+        node.numKeys = middle;
+
+        right.store();
+        node.store();
+        return split;
+    }
+
+    @Override
+    public synchronized void delete(byte[] key, long value) throws IOException {
+        try {
+            Node node = fetchNode(rootLocation);
+            while(!node.isLeaf) {
+                node = fetchNode(node.getChild(node.findChild(key, value)));
+            }
+            int i = node.lowerBound(key, value);
+            if(i < node.numKeys && node.compareEntry(key, value, i) == 0) {
+                // taking an entry out never makes a node any bigger
+                node.materialize();
+                System.arraycopy(node.keys, i + 1, node.keys, i, node.numKeys - i - 1);
+                System.arraycopy(node.values, i + 1, node.values, i, node.numKeys - i - 1);
+                System.arraycopy(node.payloads, i + 1, node.payloads, i, node.numKeys - i - 1);
+                node.numKeys--;
+                node.store();
+            }
+        } catch(IOException | DeserializationException e) {
+            upToDate = false;
+            throw e instanceof IOException ? (IOException) e : new IOException(e);
+        } finally {
+            unlockNodes();
+        }
+    }
+
+    /**
+     * Collects nodes in location order, and writes them out in big sequential batches.
+     */
+    private class BatchWriter {
+        private static final int BATCH_NODES = 64;
+
+        private final ByteBuffer batch = ByteBuffer.allocate(BATCH_NODES * NODE_SIZE);
+        private long firstLocation = 0;
+
+        public void write(Node node) throws IOException {
+            if(node.location - firstLocation == BATCH_NODES) {
+                batch.position(batch.capacity());
+                flush();
+            }
+            node.encode(encodeBuffer);
+            batch.position((int) (node.location - firstLocation) * NODE_SIZE);
+            batch.put(encodeBuffer);
+        }
+
+        public void flush() throws IOException {
+            batch.flip();
+            writeFully(channel, batch, getNodePosition(firstLocation));
+            batch.clear();
+            firstLocation += BATCH_NODES;
+        }
+    }
+
+    /**
+     * The first entry under each node on a level of a tree being bulk loaded, and where the node is.
+     */
+    private static class LevelEntries {
+        public final List<byte[]> keys = new ArrayList<>();
+        public final List<Long> values = new ArrayList<>();
+        public final List<Long> locations = new ArrayList<>();
+
+        public void add(byte[] key, long value, long location) {
+            keys.add(key);
+            values.add(value);
+            locations.add(location);
+        }
+
+        public int size() {
+            return locations.size();
+        }
+    }
+
+    /**
+     * Fills an empty tree with entries that are already in order. The leaves are written first, in order, each linked to
+     * the one after it; then each level of inner nodes over the one below, until a level has only one node. Each node
+     * is filled until its next entry would take it past the fill factor's share of a page, so the last node of a level
+     * takes whatever is left. Must be called with the lock held.
+     */
+    private void load(Iterator<Entry> entries, double fillFactor) throws IOException {
+        if(!entries.hasNext()) {
+            return;
+        }
+
+        nodeCount = 0;
+        BatchWriter writer = new BatchWriter();
+        int target = (int) (NODE_SIZE * fillFactor);
+
+        LevelEntries level = new LevelEntries();
+        Node leaf = null;
+        int keyBytes = 0;
+        while(entries.hasNext()) {
+            Entry e = entries.next();
+            if(leaf != null) {
+                int size = encodedSize(true, leaf.numKeys + 1, commonPrefix(leaf.keys[0], e.key),
+                        keyBytes + e.key.length);
+                if(size > target || leaf.numKeys == MAX_ENTRIES) {
+                    // leaves are written one after another, so the next one is always the next location
+                    leaf.next = leaf.location + 1;
+                    writer.write(leaf);
+                    leaf = null;
+                }
+            }
+            if(leaf == null) {
+                leaf = new Node(nodeCount++, true);
+                keyBytes = 0;
+                level.add(e.key, e.value, leaf.location);
+            }
+            leaf.keys[leaf.numKeys] = e.key;
+            leaf.values[leaf.numKeys] = e.value;
+            leaf.payloads[leaf.numKeys] = e.payload;
+            leaf.numKeys++;
+            keyBytes += e.key.length;
+        }
+        writer.write(leaf);
+
+        while(level.size() > 1) {
+            LevelEntries parents = new LevelEntries();
+            Node inner = null;
+            for(int i = 0; i < level.size(); i++) {
+                byte[] key = level.keys.get(i);
+                if(inner != null) {
+                    int prefix = inner.numKeys == 0 ? key.length : commonPrefix(inner.keys[0], key);
+                    int size = encodedSize(false, inner.numKeys + 1, prefix, keyBytes + key.length);
+                    if(size > target || inner.numKeys == MAX_ENTRIES) {
+                        writer.write(inner);
+                        inner = null;
+                    } else {
+                        inner.keys[inner.numKeys] = key;
+                        inner.values[inner.numKeys] = level.values.get(i);
+                        inner.children[++inner.numKeys] = level.locations.get(i);
+                        keyBytes += key.length;
+                        continue;
+                    }
+                }
+                inner = new Node(nodeCount++, false);
+                inner.children[0] = level.locations.get(i);
+                keyBytes = 0;
+                parents.add(key, level.values.get(i), inner.location);
+            }
+            writer.write(inner);
+            level = parents;
+        }
+        writer.flush();
+
+        // the pool still has copies of the empty tree
+        pool.invalidate(channel, 0);
+        setRootLocation(level.locations.get(0));
+    }
+
+    /**
+     * Locks a node against readers until the write in progress is done. Every node a write changes stays locked until
+     * the end, so a reader can never see some of the write's changes without the others.
+     */
+    // must be called with the lock held
+    private void lockNode(long location) {
+        if(!lockedNodes.contains(location)) {
+            versions.lock(location);
+            lockedNodes.add(location);
+        }
+    }
+
+    // must be called with the lock held
+    private void unlockNodes() {
+        for(long location : lockedNodes) {
+            versions.unlock(location);
+        }
+        lockedNodes.clear();
+    }
+
+    // must be called with the lock held
+    private Node allocateNode(boolean isLeaf) {
+        return new Node(nodeCount++, isLeaf);
+    }
+
+    // must be called with the lock held
+    private void setRootLocation(long location) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(LOCATION_SIZE);
+        buffer.putLong(location);
+        buffer.flip();
+        pool.write(channel, ROOT_OFFSET, buffer);
+        rootLocation = location;
+    }
+
+    @Override
+    public synchronized long estimateCardinality() {
+        // nearly every node is a leaf. guess that keys are half as long as they could be and that leaves are three
+        // quarters full.
+        int entrySize = SLOT_SIZE + KEY_LENGTH_SIZE + keySize / 2 + VALUE_SIZE + payloadSize;
+        return nodeCount * ((NODE_SIZE - NODE_HEADER_SIZE) / entrySize) * 3 / 4;
+    }
+
+    @Override
+    public boolean isUpToDate() {
+        return upToDate;
+    }
+
+    @Override
+    public synchronized void force() throws IOException {
+        channel.force(false);
+    }
+
+    /**
+     * Walks along the leaves, over the entries with keys in a range. Before it trusts the leaf it is on, it checks the
+     * leaf's version; if a writer has changed it since, the scan searches again for whatever comes after the last entry
+     * it returned. Leaves are private copies, so the entry last returned can be read out of its leaf at any time.
+     */
+    private class Scan {
+        private final byte[] lower;
+        private final boolean lowerInclusive;
+        private final byte[] upper;
+        private final boolean upperInclusive;
+
+        private Node leaf; // null if it has to be searched for again
+        private long leafVersion;
+        private int index;
+
+        private Node last; // the leaf of the entry last returned, or null before the first
+        private int lastIndex;
+
+        private boolean ready = false; // whether leaf and index point to the next entry
+        private boolean done = false;
+
+        public Scan(byte[] lower, boolean lowerInclusive, byte[] upper, boolean upperInclusive) {
+            this.lower = lower;
+            this.lowerInclusive = lowerInclusive;
+            this.upper = upper;
+            this.upperInclusive = upperInclusive;
+        }
+
+        // finds the next entry, if there is one
+        private void advance() throws DeserializationException, IOException {
+            while(!done) {
+                if(leaf == null) {
+                    // entries are unique, so the one after the last is the first that isn't less than (key, value + 1)
+                    Position p = last != null ? search(last.getKey(lastIndex), last.getValue(lastIndex) + 1)
+                            : search(lower == null ? new byte[0] : lower, Long.MIN_VALUE);
+                    leaf = p.leaf;
+                    leafVersion = p.version;
+                    index = p.index;
+                }
+                if(!versions.validate(leaf.location, leafVersion)) {
+                    leaf = null;
+                    continue;
+                }
+
+                if(index < leaf.numKeys) {
+                    if(upper != null) {
+                        int r = leaf.compareKey(upper, index);
+                        if(r < 0 || (r == 0 && !upperInclusive)) {
+                            done = true;
+                            return;
+                        }
+                    }
+                    if(lower != null && !lowerInclusive && leaf.compareKey(lower, index) == 0) {
+                        index++;
+                        continue;
+                    }
+                    ready = true;
+                    return;
+                }
+
+                if(leaf.next == NO_NODE) {
+                    done = true;
+                    return;
+                }
+                long nextLocation = leaf.next;
+                long version = versions.awaitUnlocked(nextLocation);
+                Node next = versions.validate(leaf.location, leafVersion)
+                        ? fetchNodeOptimistically(nextLocation, version) : null;
+                if(next == null) {
+                    leaf = null;
+                    continue;
+                }
+                leaf = next;
+                leafVersion = version;
+                index = 0;
+            }
+        }
+
+        public boolean hasNext() {
+            if(!ready) {
+                try {
+                    advance();
+                } catch(DeserializationException | IOException ex) {
+                    throw new RuntimeException(ex);
+                }
+            }
+            return ready;
+        }
+
+        /**
+         * Moves on to the next entry, which can then be read with {@link #getValue()} and {@link #getEntry()}.
+         */
+        public void take() {
+            if(!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            ready = false;
+            last = leaf;
+            lastIndex = index++;
+        }
+
+        public long getValue() {
+            return last.getValue(lastIndex);
+        }
+
+        public Entry getEntry() {
+            return new Entry(last.getKey(lastIndex), last.getValue(lastIndex), last.getPayload(lastIndex));
+        }
+    }
+}
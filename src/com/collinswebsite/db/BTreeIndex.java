@@ -5,22 +5,85 @@ import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
 import java.util.Stack;
 
+/**
+ * A B-tree (in the CLRS sense: every node holds entries, not just the leaves) stored in a file of page-sized nodes.
+ *
+ * Entries are ordered by key and then by value, so even when many rows share a key, every entry has a unique position
+ * and can be found again to be deleted. Inserts split full nodes on the way down and deletes top up minimal nodes on
+ * the way down, so neither ever has to walk back up the tree.
+ *
+ * The first page of the file is the header, and every page after it is one node. A node stores the prefix its keys
+ * all share once, followed by the rest of each key in fixed-width slots, so keys can be binary searched in place
+ * without being decoded. The minimum degree is chosen so that a node fits in its page even if its keys share nothing.
+ * Files in the older format, with smaller nodes and uncompressed keys, are rewritten in this one when they're opened.
+ *
+ * An index can carry the values of other columns, its payload, in every entry, so that queries reading only those and
+ * the key never have to touch the table. Since any node can hold entries, the payload goes in every node, right after
+ * the values, and the minimum degree is chosen with it counted in.
+ *
+ * Writers take the index's lock, so there is only ever one at a time. Readers take no locks at all: they use optimistic
+ * lock coupling, checking each node's version before and after reading it and starting over if a writer changed it.
+ * So lookups never wait on each other, and only wait on a writer for as long as it has their node locked. Iterators
+ * search again from the last entry they returned whenever a node they were relying on has changed, so they return
+ * entries in order, once each, and never miss one that stays in the tree while they run.
+ *
+ * Nodes freed by merges are reused by later splits, but only until the index is closed; after that they are just dead
+ * space in the file.
+ */
 public class BTreeIndex implements TableIndex {
+    private static final int FORMAT_MAGIC = 0x42547633; // "BTv3"
     private static final int VALUE_SIZE = 8;
     private static final int LOCATION_SIZE = 8;
-    private static final int HEADER_SIZE = 4 + 4 + LOCATION_SIZE;
+    // magic, minimum degree, key size, payload size, root
+    private static final int HEADER_SIZE = 4 + 4 + 4 + 4 + LOCATION_SIZE;
+    private static final int ROOT_OFFSET = HEADER_SIZE - LOCATION_SIZE;
 
+    private static final int NODE_SIZE = BufferPool.PAGE_SIZE;
+    private static final int NODE_HEADER_SIZE = 1 + 2 + 2 + 2; // is leaf, number of keys, prefix length, key stride
+    private static final int KEY_LENGTH_SIZE = 2;
+
+    // the older format's header is [minimum degree][key size][root], and its nodes are [number of keys]
+    // [(8 byte length, key padded to the key size) * max keys][values * max keys][children * max children][is leaf]
+    private static final int LEGACY_HEADER_SIZE = 4 + 4 + LOCATION_SIZE;
+    // the version before payloads is the same, but without the payload size in its header
+    private static final int NO_PAYLOAD_FORMAT_MAGIC = 0x42547632; // "BTv2"
+    private static final int NO_PAYLOAD_HEADER_SIZE = 4 + 4 + 4 + LOCATION_SIZE;
+
+    public static final double DEFAULT_FILL_FACTOR = 0.9;
+    private static final long SORT_MEMORY_BUDGET = 64 * 1024 * 1024;
+
+    private final Column column;
     private final FileChannel channel;
+    private final BufferPool pool;
     private final int minimumDegree;
     private final int keySize;
-    private final int nodeSize;
-    private final ByteBuffer nodeBuffer;
+    private final List<Column> payloadColumns;
+    private final int payloadSize;
+
+    // readers take no locks. they check each node's version before and after reading it, and start over if a writer
+    // changed it in the meantime.
+    private final NodeVersions versions = new NodeVersions();
+    private volatile long rootLocation; // only changed with the lock held
+
+    // guarded by this
+    private final List<Long> lockedNodes = new ArrayList<>(); // by the write in progress
+    private long nodeCount; // how many nodes the file has room for
+    private final List<Long> freeNodes = new ArrayList<>();
+    private final ByteBuffer encodeBuffer = ByteBuffer.allocate(NODE_SIZE);
 
-    private final BTreeNode root;
+    // cleared if a write fails part way through, since the tree may be missing the entry or half way through a change
+    private volatile boolean upToDate = true;
 
     private static int compare(byte[] a, byte[] b) {
         for(int i = 0; i < a.length && i < b.length; i++) {
@@ -34,152 +97,560 @@ public class BTreeIndex implements TableIndex {
         return a.length - b.length;
     }
 
+    /**
+     * A node is either a read-only view that decodes only what it is asked for straight out of its page, or, once
+     * {@link #materialize()} has been called, a fully decoded copy that can be modified and stored.
+     */
     private class BTreeNode {
         private final long location;
         private int numKeys;
+        private boolean isLeaf;
+
+        // the encoded node, until it is materialized
+        private byte[] page;
+        private ByteBuffer data;
+        private int prefixLength;
+        private int stride;
+
+        // the decoded node, once it is materialized
         private byte[][] keys;
         private long[] values;
+        private byte[][] payloads;
         private long[] children;
-        private boolean isLeaf;
 
+        /**
+         * Creates an empty, materialized node.
+         */
         public BTreeNode(long location) {
             this.location = location;
-            this.numKeys = 0;
+            this.isLeaf = true;
             this.keys = new byte[getMaxKeys()][];
             this.values = new long[getMaxKeys()];
+            this.payloads = new byte[getMaxKeys()][];
             this.children = new long[getMaxChildren()];
-            this.isLeaf = true;
         }
 
-        public void load() throws DeserializationException, IOException {
-            nodeBuffer.clear();
-            if(channel.read(nodeBuffer, HEADER_SIZE + (nodeSize * location)) != nodeSize) {
-                throw new DeserializationException(new EOFException());
+        /**
+         * Creates a read-only view of an encoded node.
+         * @param length How many bytes of the page were actually read.
+         */
+        public BTreeNode(long location, byte[] page, int length) throws DeserializationException {
+            this.location = location;
+            this.page = page;
+            this.data = ByteBuffer.wrap(page);
+            this.isLeaf = data.get(0) != 0;
+            this.numKeys = data.getShort(1);
+            this.prefixLength = data.getShort(3);
+            this.stride = data.getShort(5);
+            if(numKeys < 0 || numKeys > getMaxKeys() || prefixLength < 0 || stride < KEY_LENGTH_SIZE
+                    || getEnd() > length) {
+                throw new DeserializationException();
             }
-            nodeBuffer.flip();
+        }
 
-            //System.out.println("loading node from " + location);
+        private int getKeyOffset(int i) {
+            return NODE_HEADER_SIZE + prefixLength + i * stride;
+        }
+
+        private int getValuesOffset() {
+            return getKeyOffset(numKeys);
+        }
 
-            this.numKeys = nodeBuffer.getInt();
-            //System.out.println("numKeys: " + numKeys);
+        private int getPayloadsOffset() {
+            return getValuesOffset() + numKeys * VALUE_SIZE;
+        }
 
-            for(int i = 0; i < getMaxKeys(); i++) {
-                int length = (int) nodeBuffer.getLong();
-                keys[i] = new byte[length];
-                nodeBuffer.get(keys[i]);
-                nodeBuffer.position(nodeBuffer.position() + (keySize - length));
-                //System.out.println("  keys[" + i + "] = " + new String(keys[i]));
+        private int getChildrenOffset() {
+            return getPayloadsOffset() + numKeys * payloadSize;
+        }
+
+        private int getEnd() {
+            return getChildrenOffset() + (isLeaf ? 0 : (numKeys + 1) * LOCATION_SIZE);
+        }
+
+        public byte[] getKey(int i) {
+            if(keys != null) {
+                return keys[i];
             }
-            for(int i = 0; i < getMaxKeys(); i++) {
-                values[i] = nodeBuffer.getLong();
-                //System.out.println("  values[" + i + "] = " + values[i]);
+            int offset = getKeyOffset(i);
+            int suffixLength = data.getShort(offset);
+            byte[] key = new byte[prefixLength + suffixLength];
+            System.arraycopy(page, NODE_HEADER_SIZE, key, 0, prefixLength);
+            System.arraycopy(page, offset + KEY_LENGTH_SIZE, key, prefixLength, suffixLength);
+            return key;
+        }
+
+        public long getValue(int i) {
+            if(values != null) {
+                return values[i];
+            }
+            return data.getLong(getValuesOffset() + i * VALUE_SIZE);
+        }
+
+        /**
+         * @return The i-th entry's payload, or null if the index has none.
+         */
+        public byte[] getPayload(int i) {
+            if(payloadSize == 0) {
+                return null;
             }
-            for(int i = 0; i < getMaxChildren(); i++) {
-                children[i] = nodeBuffer.getLong();
-                //System.out.println("  children[" + i + "] = " + children[i]);
+            if(payloads != null) {
+                return payloads[i];
             }
-            isLeaf = nodeBuffer.get() != 0;
-            //System.out.println("isLeaf: " + isLeaf);
+            byte[] payload = new byte[payloadSize];
+            System.arraycopy(page, getPayloadsOffset() + i * payloadSize, payload, 0, payloadSize);
+            return payload;
         }
 
-        public void store() throws SerializationException, IOException {
-            nodeBuffer.clear();
-            nodeBuffer.putInt(numKeys);
-            for(int i = 0; i < getMaxKeys(); i++) {
-                nodeBuffer.putLong(keys[i].length);
-                nodeBuffer.put(keys[i]);
-                nodeBuffer.position(nodeBuffer.position() + (keySize - keys[i].length));
+        public long getChild(int i) {
+            if(children != null) {
+                return children[i];
             }
-            for(int i = 0; i < getMaxKeys(); i++) {
-                nodeBuffer.putLong(values[i]);
+            return data.getLong(getChildrenOffset() + i * LOCATION_SIZE);
+        }
+
+        /**
+         * Compares a key with the i-th key in this node, without decoding it.
+         */
+        public int compareKey(byte[] key, int i) {
+            if(keys != null) {
+                return compare(key, keys[i]);
             }
-            for(int i = 0; i < getMaxChildren(); i++) {
-                nodeBuffer.putLong(children[i]);
+            int offset = getKeyOffset(i) + KEY_LENGTH_SIZE;
+            int length = prefixLength + data.getShort(offset - KEY_LENGTH_SIZE);
+            for(int j = 0; j < key.length && j < length; j++) {
+                byte b = j < prefixLength ? page[NODE_HEADER_SIZE + j] : page[offset + j - prefixLength];
+                if(key[j] != b) {
+                    return (key[j] & 0xFF) - (b & 0xFF);
+                }
             }
-            nodeBuffer.put((byte) (isLeaf ? 1 : 0));
+            return key.length - length;
+        }
 
-            if(channel.write(nodeBuffer, HEADER_SIZE + nodeSize * location) != nodeSize) {
-                throw new SerializationException(new EOFException());
+        /**
+         * Compares an entry with the i-th entry in this node.
+         */
+        public int compareEntry(byte[] key, long value, int i) {
+            int r = compareKey(key, i);
+            if(r != 0) {
+                return r;
             }
+            return Long.compare(value, getValue(i));
         }
 
-        public boolean search(Stack<IterationRecord> path, byte[] key) throws DeserializationException, IOException {
-            //System.out.println("searching for " + new String(key));
-            int i = 0;
-            // find first key that compares greater than what we're looking for
-            while(i < numKeys && compare(key, keys[i]) > 0) {
-                //System.out.println("  skipping over " + new String(keys[i]));
-                i++;
+        /**
+         * @return The index of the first entry that is not less than (key, value), or the number of keys if there
+         *         isn't one.
+         */
+        public int lowerBound(byte[] key, long value) {
+            int low = 0;
+            int high = numKeys;
+            while(low < high) {
+                int middle = (low + high) >>> 1;
+                if(compareEntry(key, value, middle) > 0) {
+                    low = middle + 1;
+                } else {
+                    high = middle;
+                }
             }
+            return low;
+        }
 
-            // check if we found it
-            if(i < numKeys) {
-                path.push(new IterationRecord(this, i));
-                if(compare(key, keys[i]) == 0) {
-                    return true;
+        /**
+         * Decodes the whole node so that it can be modified.
+         */
+        public void materialize() {
+            if(keys != null) {
+                return;
+            }
+            byte[][] decodedKeys = new byte[getMaxKeys()][];
+            long[] decodedValues = new long[getMaxKeys()];
+            byte[][] decodedPayloads = new byte[getMaxKeys()][];
+            long[] decodedChildren = new long[getMaxChildren()];
+            for(int i = 0; i < numKeys; i++) {
+                decodedKeys[i] = getKey(i);
+                decodedValues[i] = getValue(i);
+                decodedPayloads[i] = getPayload(i);
+            }
+            if(!isLeaf) {
+                for(int i = 0; i <= numKeys; i++) {
+                    decodedChildren[i] = getChild(i);
                 }
             }
+            keys = decodedKeys;
+            values = decodedValues;
+            payloads = decodedPayloads;
+            children = decodedChildren;
+            page = null;
+            data = null;
+        }
 
-            if(isLeaf) {
-                // must not be in the tree
-                return false;
-            } else {
-                // recurse
-                return fetchNode(children[i]).search(path, key);
+        // must be called with the lock held, on a materialized node
+        public void store() throws IOException {
+            lockNode(location);
+            encode(encodeBuffer);
+            pool.write(channel, getNodePosition(location), encodeBuffer);
+        }
+
+        /**
+         * Encodes this materialized node into a buffer and flips it, ready to be written out.
+         */
+        public void encode(ByteBuffer buffer) {
+            // keys are sorted, so whatever the first and last share, they all share
+            int prefix = 0;
+            if(numKeys > 0) {
+                byte[] first = keys[0];
+                byte[] last = keys[numKeys - 1];
+                while(prefix < first.length && prefix < last.length && first[prefix] == last[prefix]) {
+                    prefix++;
+                }
+            }
+            int longestSuffix = 0;
+            for(int i = 0; i < numKeys; i++) {
+                longestSuffix = Math.max(longestSuffix, keys[i].length - prefix);
+            }
+            int keyStride = KEY_LENGTH_SIZE + longestSuffix;
+
+            buffer.clear();
+            buffer.put((byte) (isLeaf ? 1 : 0));
+            buffer.putShort((short) numKeys);
+            buffer.putShort((short) prefix);
+            buffer.putShort((short) keyStride);
+            if(numKeys > 0) {
+                buffer.put(keys[0], 0, prefix);
             }
+            for(int i = 0; i < numKeys; i++) {
+                int slot = buffer.position();
+                buffer.putShort((short) (keys[i].length - prefix));
+                buffer.put(keys[i], prefix, keys[i].length - prefix);
+                buffer.position(slot + keyStride);
+            }
+            for(int i = 0; i < numKeys; i++) {
+                buffer.putLong(values[i]);
+            }
+            if(payloadSize > 0) {
+                for(int i = 0; i < numKeys; i++) {
+                    buffer.put(payloads[i], 0, payloadSize);
+                }
+            }
+            if(!isLeaf) {
+                for(int i = 0; i <= numKeys; i++) {
+                    buffer.putLong(children[i]);
+                }
+            }
+            buffer.flip();
         }
     }
 
     private class IterationRecord {
         public BTreeNode node;
         public int index;
+        public long version; // of the node when it was read
 
-        public IterationRecord(BTreeNode node, int index) {
+        public IterationRecord(BTreeNode node, int index, long version) {
             this.node = node;
             this.index = index;
+            this.version = version;
         }
     }
 
-    public class Entry {
-        public byte[] key;
-        public long value;
+    public BTreeIndex(Column name, String fileName) throws IOException, DeserializationException {
+        this(name, fileName, BufferPool.DEFAULT);
+    }
 
-        public Entry(byte[] key, long value) {
-            this.key = key;
-            this.value = value;
-        }
+    public BTreeIndex(Column name, String fileName, BufferPool pool) throws IOException, DeserializationException {
+        this(name, Collections.emptyList(), fileName, pool);
     }
 
-    public BTreeIndex(Column name, String fileName) throws IOException, DeserializationException {
-        this.channel = FileChannel.open(FileSystems.getDefault().getPath("indices", fileName),
-                StandardOpenOption.READ,
-                StandardOpenOption.WRITE);
+    /**
+     * Opens an index that stores a payload.
+     * @param payloadColumns The columns the index was created with, in the same order.
+     */
+    public BTreeIndex(Column name, List<Column> payloadColumns, String fileName, BufferPool pool)
+            throws IOException, DeserializationException {
+        this(name, payloadColumns, FileSystems.getDefault().getPath("indices", fileName), pool);
+    }
+
+    private BTreeIndex(Column column, List<Column> payloadColumns, Path path, BufferPool pool)
+            throws IOException, DeserializationException {
+        this.column = column;
+        this.payloadColumns = payloadColumns;
+        this.pool = pool;
 
+        // check the format before anything about the file is cached, since upgrading it replaces it
+        FileChannel channel = openChannel(path);
         ByteBuffer headerBuffer = ByteBuffer.allocate(HEADER_SIZE);
-        if(channel.read(headerBuffer, 0) != HEADER_SIZE) {
+        int magic = readFully(channel, headerBuffer, 0) < 4 ? 0 : headerBuffer.getInt(0);
+        if(magic == NO_PAYLOAD_FORMAT_MAGIC) {
+            addPayloadSize(channel, headerBuffer);
+        } else if(magic != FORMAT_MAGIC) {
+            channel.close();
+            upgrade(column, path, pool);
+            channel = openChannel(path);
+        }
+        this.channel = channel;
+
+        headerBuffer.clear();
+        if(pool.read(channel, 0, headerBuffer) != HEADER_SIZE) {
             throw new DeserializationException(new EOFException());
         }
         headerBuffer.flip();
-
+        if(headerBuffer.getInt() != FORMAT_MAGIC) {
+            throw new DeserializationException();
+        }
         this.minimumDegree = headerBuffer.getInt();
         this.keySize = headerBuffer.getInt();
+        this.payloadSize = headerBuffer.getInt();
+        this.rootLocation = headerBuffer.getLong();
+        if(payloadSize != getPayloadSize(payloadColumns)) {
+            throw new DeserializationException(); // the file was created with other payload columns
+        }
 
-        this.nodeSize = 4 + // number of keys
-                (getMaxKeys() * (8 + keySize)) + // keys
-                (getMaxKeys() * VALUE_SIZE) + // values
-                (getMaxChildren() * LOCATION_SIZE) + // locations
-                1; // is leaf
-        this.nodeBuffer = ByteBuffer.allocate(nodeSize);
+        this.nodeCount = (channel.size() - 1) / NODE_SIZE;
+        fetchNode(rootLocation); // make sure there's a tree there
+    }
 
-        this.root = fetchNode(headerBuffer.getLong());
+    /**
+     * Creates a new, empty index file, replacing any that is already there.
+     * @param keySize The longest key, in bytes, that the index will be able to hold.
+     */
+    public static BTreeIndex create(Column column, String fileName, int keySize, BufferPool pool)
+            throws IOException, DeserializationException {
+        return create(column, Collections.emptyList(), fileName, keySize, pool);
     }
 
-    private int getMinKeys() {
-        return this.minimumDegree - 1;
+    /**
+     * Creates a new, empty index file that stores a payload, replacing any that is already there.
+     * @param payloadColumns The columns whose values each entry carries.
+     * @param keySize The longest key, in bytes, that the index will be able to hold.
+     */
+    public static BTreeIndex create(Column column, List<Column> payloadColumns, String fileName, int keySize,
+                                    BufferPool pool) throws IOException, DeserializationException {
+        Path path = FileSystems.getDefault().getPath("indices", fileName);
+        writeEmptyTree(path, keySize, getPayloadSize(payloadColumns));
+        return new BTreeIndex(column, payloadColumns, path, pool);
+    }
+
+    /**
+     * Builds an index of a column from scratch, replacing any file that is already there. Instead of inserting rows one
+     * at a time, this sorts every (key, row ID) pair, spilling them to temporary files if they don't fit in memory, and
+     * then writes the tree out bottom-up in one sequential pass.
+     *
+     * Nothing may write to the table until the index has been built and registered with it.
+     * @param fillFactor How full to pack each node, from 0.5 to 1. Leaving room in them makes later inserts cheaper.
+     */
+    public static BTreeIndex build(Table table, Column column, String fileName, double fillFactor, BufferPool pool)
+            throws IOException, DeserializationException {
+        return build(table, column, Collections.emptyList(), fileName, fillFactor, pool);
+    }
+
+    /**
+     * Builds an index that stores a payload from scratch, like {@link #build(Table, Column, String, double, BufferPool)}.
+     * @param payloadColumns The columns whose values each entry carries.
+     */
+    public static BTreeIndex build(Table table, Column column, List<Column> payloadColumns, String fileName,
+                                   double fillFactor, BufferPool pool) throws IOException, DeserializationException {
+        if(fillFactor < 0.5 || fillFactor > 1) {
+            throw new IllegalArgumentException("fill factor must be between 0.5 and 1");
+        }
+
+        BTreeIndex index = create(column, payloadColumns, fileName, TableIndex.getMaxKeyLength(column.getType()), pool);
+        try(IndexEntrySorter sorter = new IndexEntrySorter(SORT_MEMORY_BUDGET)) {
+            FullScanCursor cursor = table.createFullTableScanCursor();
+            List<Column> projection = new ArrayList<>(payloadColumns);
+            projection.add(column);
+            cursor.setProjection(projection);
+            Row r;
+            while((r = cursor.getNext()) != null) {
+                sorter.add(TableIndex.encodeKey(r.getValueForColumn(column)), r.getId(),
+                        r.serializeColumns(payloadColumns));
+            }
+            synchronized(index) {
+                index.load(sorter.sorted(), sorter.size(), fillFactor);
+            }
+        }
+        return index;
+    }
+
+    private static void writeEmptyTree(Path path, int keySize, int payloadSize) throws IOException {
+        int minimumDegree = getMinimumDegree(keySize, payloadSize);
+        if(minimumDegree < 2) {
+            throw new IllegalArgumentException("keys of " + keySize + " bytes with " + payloadSize
+                    + " bytes of payload are too long to index");
+        }
+
+        try(FileChannel channel = FileChannel.open(path,
+                StandardOpenOption.WRITE,
+                StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(FORMAT_MAGIC);
+            header.putInt(minimumDegree);
+            header.putInt(keySize);
+            header.putInt(payloadSize);
+            header.putLong(0);
+            header.flip();
+            writeFully(channel, header, 0);
+
+            // the root starts out as an empty leaf at location 0
+            ByteBuffer node = ByteBuffer.allocate(NODE_HEADER_SIZE);
+            node.put((byte) 1);
+            node.putShort((short) 0);
+            node.putShort((short) 0);
+            node.putShort((short) KEY_LENGTH_SIZE);
+            node.flip();
+            writeFully(channel, node, getNodePosition(0));
+        }
+    }
+
+    /**
+     * Upgrades a file from before payloads, in place. Its nodes are already in the current format, with empty payloads,
+     * so only the header has to change.
+     */
+    private static void addPayloadSize(FileChannel channel, ByteBuffer header) throws IOException {
+        ByteBuffer upgraded = ByteBuffer.allocate(HEADER_SIZE);
+        upgraded.putInt(FORMAT_MAGIC);
+        upgraded.putInt(header.getInt(4)); // minimum degree
+        upgraded.putInt(header.getInt(8)); // key size
+        upgraded.putInt(0);
+        upgraded.putLong(header.getLong(NO_PAYLOAD_HEADER_SIZE - LOCATION_SIZE)); // root
+        upgraded.flip();
+        writeFully(channel, upgraded, 0);
+    }
+
+    /**
+     * Rewrites an index file in the older format in the current one.
+     */
+    private static void upgrade(Column column, Path path, BufferPool pool) throws IOException, DeserializationException {
+        List<Entry> entries = new ArrayList<>();
+        int keySize;
+        try(FileChannel legacy = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(LEGACY_HEADER_SIZE);
+            if(readFully(legacy, header, 0) != LEGACY_HEADER_SIZE) {
+                throw new DeserializationException(new EOFException());
+            }
+            header.flip();
+            int minimumDegree = header.getInt();
+            keySize = header.getInt();
+            readLegacyNode(legacy, minimumDegree, keySize, header.getLong(), entries);
+        }
+
+        Path upgraded = path.resolveSibling(path.getFileName() + ".upgrade");
+        writeEmptyTree(upgraded, keySize, 0);
+        BTreeIndex index = new BTreeIndex(column, Collections.emptyList(), upgraded, pool);
+        try {
+            for(Entry e : entries) {
+                index.insert(e.key, e.value);
+            }
+        } finally {
+            index.channel.close();
+        }
+        Files.move(upgraded, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // appends the entries under a node in the older format to a list, in order
+    private static void readLegacyNode(FileChannel channel, int minimumDegree, int keySize, long location,
+                                       List<Entry> entries) throws IOException, DeserializationException {
+        int maxKeys = minimumDegree * 2 - 1;
+        int maxChildren = minimumDegree * 2;
+        int nodeSize = 4 + maxKeys * (8 + keySize) + maxKeys * VALUE_SIZE + maxChildren * LOCATION_SIZE + 1;
+        ByteBuffer buffer = ByteBuffer.allocate(nodeSize);
+        if(readFully(channel, buffer, LEGACY_HEADER_SIZE + nodeSize * location) != nodeSize) {
+            throw new DeserializationException(new EOFException());
+        }
+        buffer.flip();
+
+        int numKeys = buffer.getInt();
+        if(numKeys < 0 || numKeys > maxKeys) {
+            throw new DeserializationException();
+        }
+        byte[][] keys = new byte[numKeys][];
+        for(int i = 0; i < maxKeys; i++) {
+            int slot = buffer.position();
+            if(i < numKeys) {
+                long length = buffer.getLong();
+                if(length < 0 || length > keySize) {
+                    throw new DeserializationException();
+                }
+                keys[i] = new byte[(int) length];
+                buffer.get(keys[i]);
+            }
+            buffer.position(slot + 8 + keySize);
+        }
+        long[] values = new long[maxKeys];
+        for(int i = 0; i < maxKeys; i++) {
+            values[i] = buffer.getLong();
+        }
+        long[] children = new long[maxChildren];
+        for(int i = 0; i < maxChildren; i++) {
+            children[i] = buffer.getLong();
+        }
+        boolean isLeaf = buffer.get() != 0;
+
+        for(int i = 0; i < numKeys; i++) {
+            if(!isLeaf) {
+                readLegacyNode(channel, minimumDegree, keySize, children[i], entries);
+            }
+            entries.add(new Entry(keys[i], values[i]));
+        }
+        if(!isLeaf) {
+            readLegacyNode(channel, minimumDegree, keySize, children[numKeys], entries);
+        }
+    }
+
+    private static FileChannel openChannel(Path path) throws IOException {
+        return FileChannel.open(path,
+                StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+    }
+
+    private static int readFully(FileChannel channel, ByteBuffer dst, long position) throws IOException {
+        int total = 0;
+        while(dst.hasRemaining()) {
+            int n = channel.read(dst, position + total);
+            if(n <= 0) {
+                break;
+            }
+            total += n;
+        }
+        return total;
     }
 
-    private int getMinChildren() {
-        return this.minimumDegree;
+    private static void writeFully(FileChannel channel, ByteBuffer src, long position) throws IOException {
+        while(src.hasRemaining()) {
+            position += channel.write(src, position);
+        }
+    }
+
+    /**
+     * @return The largest minimum degree whose nodes are sure to fit in a page, however little their keys share.
+     */
+    private static int getMinimumDegree(int keySize, int payloadSize) {
+        int entrySize = KEY_LENGTH_SIZE + keySize + VALUE_SIZE + payloadSize + LOCATION_SIZE;
+        int maxKeys = (NODE_SIZE - NODE_HEADER_SIZE - keySize - LOCATION_SIZE) / entrySize;
+        return (maxKeys + 1) / 2;
+    }
+
+    private static int getPayloadSize(List<Column> payloadColumns) {
+        return payloadColumns.stream().mapToInt((c) -> c.getType().getSize()).sum();
+    }
+
+    private static long getNodePosition(long location) {
+        return (location + 1) * NODE_SIZE; // the header has the first page to itself
+    }
+
+    @Override
+    public Column getColumn() {
+        return column;
+    }
+
+    @Override
+    public List<Column> getPayloadColumns() {
+        return payloadColumns;
+    }
+
+    private int getMinKeys() {
+        return this.minimumDegree - 1;
     }
 
     private int getMaxKeys() {
@@ -191,53 +662,665 @@ public class BTreeIndex implements TableIndex {
     }
 
     private BTreeNode fetchNode(long location) throws DeserializationException, IOException {
-        BTreeNode node = new BTreeNode(location);
-        node.load();
+        ByteBuffer page = ByteBuffer.allocate(NODE_SIZE);
+        int length = pool.read(channel, getNodePosition(location), page);
+        if(length < NODE_HEADER_SIZE) {
+            throw new DeserializationException(new EOFException());
+        }
+        return new BTreeNode(location, page.array(), length);
+    }
+
+    // must be called with the lock held
+    private BTreeNode fetchNodeForWrite(long location) throws DeserializationException, IOException {
+        BTreeNode node = fetchNode(location);
+        node.materialize();
         return node;
     }
 
+    /**
+     * Reads a node that a reader is about to use. A writer may be changing it at the same time, so it might not decode;
+     * that only counts as an error if the version shows that nothing was changing it.
+     * @return The node, or null if it changed while it was being read.
+     */
+    private BTreeNode fetchNodeOptimistically(long location, long version) throws DeserializationException, IOException {
+        BTreeNode node;
+        try {
+            node = fetchNode(location);
+        } catch(DeserializationException e) {
+            if(versions.validate(location, version)) {
+                throw e;
+            }
+            return null;
+        }
+        return versions.validate(location, version) ? node : null;
+    }
+
+    /**
+     * Builds the path to the first entry that is not less than (key, value), without taking any locks. Each child is
+     * only trusted if its parent hadn't changed by the time the child's version was read; otherwise, the search starts
+     * over from the root.
+     */
+    private Stack<IterationRecord> search(byte[] key, long value) throws DeserializationException, IOException {
+        restart:
+        while(true) {
+            Stack<IterationRecord> path = new Stack<>();
+            long location = rootLocation;
+            long version = versions.awaitUnlocked(location);
+            BTreeNode node = fetchNodeOptimistically(location, version);
+            if(node == null || rootLocation != location) {
+                continue;
+            }
+
+            while(true) {
+                int i = node.lowerBound(key, value);
+                if(i < node.numKeys) {
+                    path.push(new IterationRecord(node, i, version));
+                }
+                if(node.isLeaf) {
+                    return path;
+                }
+
+                long childLocation = node.getChild(i);
+                long childVersion = versions.awaitUnlocked(childLocation);
+                if(!versions.validate(location, version)) {
+                    continue restart;
+                }
+                BTreeNode child = fetchNodeOptimistically(childLocation, childVersion);
+                if(child == null) {
+                    continue restart;
+                }
+                location = childLocation;
+                version = childVersion;
+                node = child;
+            }
+        }
+    }
+
     public Iterator<Entry> iterate(byte[] start) throws DeserializationException, IOException {
-        Stack<IterationRecord> path = new Stack<>();
-        root.search(path, start);
-        return new BTreeIterator(path);
+        return new BTreeIterator(start);
+    }
+
+    @Override
+    public Iterator<Entry> range(byte[] lower, boolean lowerInclusive, byte[] upper, boolean upperInclusive)
+            throws DeserializationException, IOException {
+        return new RangeIterator(iterate(lower == null ? new byte[0] : lower),
+                lower, lowerInclusive, upper, upperInclusive);
+    }
+
+    @Override
+    public void insert(byte[] key, long value) throws IOException {
+        insert(key, value, null);
+    }
+
+    @Override
+    public synchronized void insert(byte[] key, long value, byte[] payload) throws IOException {
+        if(key.length > keySize) {
+            throw new IOException("key is longer than the " + keySize + " bytes this index can hold");
+        }
+        if((payload == null ? 0 : payload.length) != payloadSize) {
+            throw new IllegalArgumentException("expected a payload of " + payloadSize + " bytes");
+        }
+        try {
+            BTreeNode top = fetchNodeForWrite(rootLocation);
+            if(top.numKeys == getMaxKeys()) {
+                // the only way the tree gets taller: split the root under a new, empty one
+                BTreeNode newRoot = allocateNode();
+                newRoot.isLeaf = false;
+                newRoot.children[0] = top.location;
+                splitChild(newRoot, 0, top);
+                setRootLocation(newRoot.location);
+                top = newRoot;
+            }
+            insertNonFull(top, key, value, payload);
+        } catch(IOException | DeserializationException e) {
+            upToDate = false;
+            throw e instanceof IOException ? (IOException) e : new IOException(e);
+        } finally {
+            unlockNodes();
+        }
+    }
+
+    private void insertNonFull(BTreeNode node, byte[] key, long value, byte[] payload)
+            throws IOException, DeserializationException {
+        int i = node.lowerBound(key, value);
+        if(node.isLeaf) {
+            // shift greater entries over to make room
+            System.arraycopy(node.keys, i, node.keys, i + 1, node.numKeys - i);
+            System.arraycopy(node.values, i, node.values, i + 1, node.numKeys - i);
+            System.arraycopy(node.payloads, i, node.payloads, i + 1, node.numKeys - i);
+            node.keys[i] = key;
+            node.values[i] = value;
+            node.payloads[i] = payload;
+            node.numKeys++;
+            node.store();
+            return;
+        }
+
+        BTreeNode child = fetchNodeForWrite(node.children[i]);
+        if(child.numKeys == getMaxKeys()) {
+            // split it now, so that there's room for whatever gets pushed up from below
+            splitChild(node, i, child);
+            if(node.compareEntry(key, value, i) > 0) {
+                child = fetchNodeForWrite(node.children[++i]);
+            }
+        }
+        insertNonFull(child, key, value, payload);
+    }
+
+    /**
+     * Splits a full child in two around its middle entry, which moves up into the parent. The parent must not be full.
+     */
+    private void splitChild(BTreeNode parent, int index, BTreeNode child) throws IOException {
+        int t = minimumDegree;
+        BTreeNode sibling = allocateNode();
+        sibling.isLeaf = child.isLeaf;
+        sibling.numKeys = t - 1;
+        System.arraycopy(child.keys, t, sibling.keys, 0, t - 1);
+        System.arraycopy(child.values, t, sibling.values, 0, t - 1);
+        System.arraycopy(child.payloads, t, sibling.payloads, 0, t - 1);
+        if(!child.isLeaf) {
+            System.arraycopy(child.children, t, sibling.children, 0, t);
+        }
+        child.numKeys = t - 1;
+
+        System.arraycopy(parent.children, index + 1, parent.children, index + 2, parent.numKeys - index);
+        parent.children[index + 1] = sibling.location;
+        System.arraycopy(parent.keys, index, parent.keys, index + 1, parent.numKeys - index);
+        System.arraycopy(parent.values, index, parent.values, index + 1, parent.numKeys - index);
+        System.arraycopy(parent.payloads, index, parent.payloads, index + 1, parent.numKeys - index);
+        parent.keys[index] = child.keys[t - 1];
+        parent.values[index] = child.values[t - 1];
+        parent.payloads[index] = child.payloads[t - 1];
+        parent.numKeys++;
+
+        child.store();
+        sibling.store();
+        parent.store();
+    }
+
+    @Override
+    public synchronized void delete(byte[] key, long value) throws IOException {
+        try {
+            BTreeNode top = fetchNodeForWrite(rootLocation);
+            delete(top, key, value);
+            if(top.numKeys == 0 && !top.isLeaf) {
+                // the only way the tree gets shorter: the root's last entry was merged down into its only child
+                setRootLocation(top.children[0]);
+                freeNodes.add(top.location);
+            }
+        } catch(IOException | DeserializationException e) {
+            upToDate = false;
+            throw e instanceof IOException ? (IOException) e : new IOException(e);
+        } finally {
+            unlockNodes();
+        }
+    }
+
+    /**
+     * Deletes an entry from the subtree under a node. Every node this descends into is first made to hold at least
+     * the minimum degree's worth of entries, so that it can give one up without underflowing.
+     * @return false if the entry wasn't there.
+     */
+    private boolean delete(BTreeNode node, byte[] key, long value) throws IOException, DeserializationException {
+        int t = minimumDegree;
+        int i = node.lowerBound(key, value);
+
+        if(i < node.numKeys && node.compareEntry(key, value, i) == 0) {
+            if(node.isLeaf) {
+                removeEntry(node, i);
+                node.store();
+                return true;
+            }
+
+            // replace it with its predecessor or successor, and delete that from the subtree instead
+            BTreeNode left = fetchNodeForWrite(node.children[i]);
+            if(left.numKeys >= t) {
+                BTreeNode last = left;
+                while(!last.isLeaf) {
+                    last = fetchNode(last.getChild(last.numKeys));
+                }
+                node.keys[i] = last.getKey(last.numKeys - 1);
+                node.values[i] = last.getValue(last.numKeys - 1);
+                node.payloads[i] = last.getPayload(last.numKeys - 1);
+                node.store();
+                return delete(left, node.keys[i], node.values[i]);
+            }
+            BTreeNode right = fetchNodeForWrite(node.children[i + 1]);
+            if(right.numKeys >= t) {
+                BTreeNode first = right;
+                while(!first.isLeaf) {
+                    first = fetchNode(first.getChild(0));
+                }
+                node.keys[i] = first.getKey(0);
+                node.values[i] = first.getValue(0);
+                node.payloads[i] = first.getPayload(0);
+                node.store();
+                return delete(right, node.keys[i], node.values[i]);
+            }
+
+            // both are minimal, so merge them around the entry and delete it from there
+            merge(node, i, left, right);
+            return delete(left, key, value);
+        }
+
+        if(node.isLeaf) {
+            return false;
+        }
+
+        BTreeNode child = fetchNodeForWrite(node.children[i]);
+        if(child.numKeys < t) {
+            BTreeNode left = i > 0 ? fetchNodeForWrite(node.children[i - 1]) : null;
+            BTreeNode right = i < node.numKeys ? fetchNodeForWrite(node.children[i + 1]) : null;
+            if(left != null && left.numKeys >= t) {
+                // borrow from the left sibling, by way of the parent
+                System.arraycopy(child.keys, 0, child.keys, 1, child.numKeys);
+                System.arraycopy(child.values, 0, child.values, 1, child.numKeys);
+                System.arraycopy(child.payloads, 0, child.payloads, 1, child.numKeys);
+                System.arraycopy(child.children, 0, child.children, 1, child.numKeys + 1);
+                child.keys[0] = node.keys[i - 1];
+                child.values[0] = node.values[i - 1];
+                child.payloads[0] = node.payloads[i - 1];
+                child.children[0] = left.children[left.numKeys];
+                child.numKeys++;
+                node.keys[i - 1] = left.keys[left.numKeys - 1];
+                node.values[i - 1] = left.values[left.numKeys - 1];
+                node.payloads[i - 1] = left.payloads[left.numKeys - 1];
+                left.numKeys--;
+                left.store();
+                child.store();
+                node.store();
+            } else if(right != null && right.numKeys >= t) {
+                // borrow from the right sibling, by way of the parent
+                child.keys[child.numKeys] = node.keys[i];
+                child.values[child.numKeys] = node.values[i];
+                child.payloads[child.numKeys] = node.payloads[i];
+                child.children[child.numKeys + 1] = right.children[0];
+                child.numKeys++;
+                node.keys[i] = right.keys[0];
+                node.values[i] = right.values[0];
+                node.payloads[i] = right.payloads[0];
+                System.arraycopy(right.children, 1, right.children, 0, right.numKeys);
+                removeEntry(right, 0);
+                right.store();
+                child.store();
+                node.store();
+            } else if(left != null) {
+                merge(node, i - 1, left, child);
+                child = left;
+            } else {
+                merge(node, i, child, right);
+            }
+        }
+        return delete(child, key, value);
+    }
+
+    /**
+     * Merges two minimal siblings, and the parent entry between them, into the left one. The right one is freed.
+     */
+    private void merge(BTreeNode parent, int index, BTreeNode left, BTreeNode right) throws IOException {
+        int t = minimumDegree;
+        left.keys[t - 1] = parent.keys[index];
+        left.values[t - 1] = parent.values[index];
+        left.payloads[t - 1] = parent.payloads[index];
+        System.arraycopy(right.keys, 0, left.keys, t, right.numKeys);
+        System.arraycopy(right.values, 0, left.values, t, right.numKeys);
+        System.arraycopy(right.payloads, 0, left.payloads, t, right.numKeys);
+        if(!left.isLeaf) {
+            System.arraycopy(right.children, 0, left.children, t, right.numKeys + 1);
+        }
+        left.numKeys = t + right.numKeys;
+
+        removeEntry(parent, index);
+        System.arraycopy(parent.children, index + 2, parent.children, index + 1, parent.numKeys - index);
+
+        left.store();
+        parent.store();
+        lockNode(right.location); // anyone still reading it has to start over
+        freeNodes.add(right.location);
+    }
+
+    // shifts the entries after i down over it. children are left alone.
+    private static void removeEntry(BTreeNode node, int i) {
+        System.arraycopy(node.keys, i + 1, node.keys, i, node.numKeys - i - 1);
+        System.arraycopy(node.values, i + 1, node.values, i, node.numKeys - i - 1);
+        System.arraycopy(node.payloads, i + 1, node.payloads, i, node.numKeys - i - 1);
+        node.numKeys--;
+    }
+
+    /**
+     * One level of a tree being bulk loaded: how many nodes it will have, and the node currently being filled.
+     */
+    private class Level {
+        private final long nodes;
+        private final long children; // on the leaf level, the gaps around and between the entries
+        private long finished = 0;
+
+        private final byte[][] keys = new byte[getMaxKeys()][];
+        private final long[] values = new long[getMaxKeys()];
+        private final byte[][] payloads = new byte[getMaxKeys()][];
+        private final long[] childLocations = new long[getMaxChildren()];
+        private int numKeys = 0;
+        private int numChildren = 0;
+
+        public Level(long nodes, long children) {
+            this.nodes = nodes;
+            this.children = children;
+        }
+
+        /**
+         * @return How many children the node being filled gets. The children are spread out as evenly as possible.
+         */
+        public int getTarget() {
+            return (int) (children / nodes + (finished < children % nodes ? 1 : 0));
+        }
+    }
+
+    /**
+     * Collects nodes in location order, and writes them out in big sequential batches.
+     */
+    private class BatchWriter {
+        private static final int BATCH_NODES = 64;
+
+        private final ByteBuffer batch = ByteBuffer.allocate(BATCH_NODES * NODE_SIZE);
+        private long firstLocation = 0;
+
+        public void write(BTreeNode node) throws IOException {
+            if(node.location - firstLocation == BATCH_NODES) {
+                batch.position(batch.capacity());
+                flush();
+            }
+            node.encode(encodeBuffer);
+            batch.position((int) (node.location - firstLocation) * NODE_SIZE);
+            batch.put(encodeBuffer);
+        }
+
+        public void flush() throws IOException {
+            batch.flip();
+            writeFully(channel, batch, getNodePosition(firstLocation));
+            batch.clear();
+            firstLocation += BATCH_NODES;
+        }
+    }
+
+    /**
+     * Fills an empty tree with entries that are already in order. Every level is planned up front: each gets as few
+     * nodes as the fill factor allows, but never so few that a node would need more than its maximum number of
+     * children, or so many that one would get fewer than its minimum. Nodes are written as soon as they are full,
+     * which is always in location order, so the whole tree is written front to back. Must be called with the lock held.
+     */
+    private void load(Iterator<Entry> entries, long count, double fillFactor) throws IOException, DeserializationException {
+        if(count == 0) {
+            return;
+        }
+
+        int fill = Math.max(getMinKeys(), Math.min(getMaxKeys(), (int) Math.round(getMaxKeys() * fillFactor)));
+        List<Level> levels = new ArrayList<>();
+        long children = count + 1;
+        while(true) {
+            long nodes = Math.max(1, Math.min((children + fill) / (fill + 1), children / minimumDegree));
+            levels.add(new Level(nodes, children));
+            if(nodes == 1) {
+                break;
+            }
+            children = nodes;
+        }
+
+        nodeCount = 0;
+        freeNodes.clear();
+        BatchWriter writer = new BatchWriter();
+        while(entries.hasNext()) {
+            addToLevel(levels, 0, 0, entries.next(), writer);
+        }
+        addToLevel(levels, 0, 0, null, writer);
+        writer.flush();
+
+        // the pool still has copies of the empty tree
+        pool.invalidate(channel, 0);
+        setRootLocation(rootLocation);
+    }
+
+    /**
+     * Adds the next child to the node being filled on a level, along with the entry that follows it. After the very last
+     * child, the entry is null. On the leaf level, the children are just the gaps between entries.
+     */
+    private void addToLevel(List<Level> levels, int depth, long child, Entry entry, BatchWriter writer)
+            throws IOException {
+        Level level = levels.get(depth);
+        level.childLocations[level.numChildren++] = child;
+        if(level.numChildren < level.getTarget()) {
+            level.keys[level.numKeys] = entry.key;
+            level.values[level.numKeys] = entry.value;
+            level.payloads[level.numKeys] = entry.payload;
+            level.numKeys++;
+            return;
+        }
+
+        // the node is full, so the entry goes up a level instead
+        BTreeNode node = new BTreeNode(nodeCount++);
+        node.isLeaf = depth == 0;
+        node.numKeys = level.numKeys;
+        System.arraycopy(level.keys, 0, node.keys, 0, level.numKeys);
+        System.arraycopy(level.values, 0, node.values, 0, level.numKeys);
+        System.arraycopy(level.payloads, 0, node.payloads, 0, level.numKeys);
+        if(!node.isLeaf) {
+            System.arraycopy(level.childLocations, 0, node.children, 0, level.numChildren);
+        }
+        writer.write(node);
+        level.finished++;
+        level.numKeys = 0;
+        level.numChildren = 0;
+
+        if(depth + 1 < levels.size()) {
+            addToLevel(levels, depth + 1, node.location, entry, writer);
+        } else {
+            rootLocation = node.location;
+        }
+    }
+
+    /**
+     * Locks a node against readers until the write in progress is done. Every node a write changes stays locked until
+     * the end, so a reader can never see some of the write's changes without the others.
+     */
+    // must be called with the lock held
+    private void lockNode(long location) {
+        if(!lockedNodes.contains(location)) {
+            versions.lock(location);
+            lockedNodes.add(location);
+        }
+    }
+
+    // must be called with the lock held
+    private void unlockNodes() {
+        for(long location : lockedNodes) {
+            versions.unlock(location);
+        }
+        lockedNodes.clear();
+    }
+
+    // must be called with the lock held
+    private BTreeNode allocateNode() {
+        long location = freeNodes.isEmpty() ? nodeCount++ : freeNodes.remove(freeNodes.size() - 1);
+        return new BTreeNode(location);
+    }
+
+    // must be called with the lock held
+    private void setRootLocation(long location) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(LOCATION_SIZE);
+        buffer.putLong(location);
+        buffer.flip();
+        pool.write(channel, ROOT_OFFSET, buffer);
+        rootLocation = location;
+    }
+
+    @Override
+    public synchronized long estimateCardinality() {
+        // assume nodes are about half way between their minimum and maximum occupancy
+        return (nodeCount - freeNodes.size()) * (getMinKeys() + getMaxKeys()) / 2;
+    }
+
+    @Override
+    public boolean isUpToDate() {
+        return upToDate;
+    }
+
+    @Override
+    public synchronized void force() throws IOException {
+        channel.force(false);
     }
 
+    /**
+     * Trims an iteration that starts at the lower bound of a range down to the range.
+     */
+    private static class RangeIterator implements Iterator<Entry> {
+        private final Iterator<Entry> entries;
+        private final byte[] lower;
+        private final boolean lowerInclusive;
+        private final byte[] upper;
+        private final boolean upperInclusive;
+        private Entry next;
+
+        public RangeIterator(Iterator<Entry> entries,
+                             byte[] lower, boolean lowerInclusive,
+                             byte[] upper, boolean upperInclusive) {
+            this.entries = entries;
+            this.lower = lower;
+            this.lowerInclusive = lowerInclusive;
+            this.upper = upper;
+            this.upperInclusive = upperInclusive;
+            advance();
+        }
+
+        private void advance() {
+            next = null;
+            while(entries.hasNext()) {
+                Entry e = entries.next();
+                if(lower != null && !lowerInclusive && compare(e.key, lower) == 0) {
+                    continue;
+                }
+                if(upper != null) {
+                    int r = compare(e.key, upper);
+                    if(r > 0 || (r == 0 && !upperInclusive)) {
+                        return; // past the end of the range
+                    }
+                }
+                next = e;
+                return;
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        @Override
+        public Entry next() {
+            if(next == null) {
+                throw new NoSuchElementException();
+            }
+            Entry e = next;
+            advance();
+            return e;
+        }
+    }
+
+    /**
+     * Walks the tree in order, holding the path from the root down to the next entry. Before the iterator trusts a node
+     * on that path again, it checks the node's version; if a writer has changed it since, the iterator searches again
+     * for whatever comes after the last entry it returned.
+     */
     private class BTreeIterator implements Iterator<Entry> {
-        private Stack<IterationRecord> path;
+        private Stack<IterationRecord> path; // null if it has to be searched for again
+        // where to search from if it does: just past the last entry returned
+        private byte[] resumeKey;
+        private long resumeValue;
+        private Entry next;
 
-        public BTreeIterator(Stack<IterationRecord> path) {
-            this.path = path;
+        public BTreeIterator(byte[] start) throws DeserializationException, IOException {
+            this.resumeKey = start;
+            this.resumeValue = Long.MIN_VALUE;
+            this.path = search(start, Long.MIN_VALUE);
             //dumpIterationState();
+            this.next = take();
         }
 
         private void dumpIterationState() {
             for(int i = 0; i < path.size(); i++) {
                 IterationRecord r = path.get(i);
-                System.out.println("node<" + r.node.location + ">[" + r.index + "] = (" + new String(r.node.keys[r.index]) + ")");
+                System.out.println("node<" + r.node.location + ">[" + r.index + "] = (" + new String(r.node.getKey(r.index)) + ")");
+            }
+        }
+
+        /**
+         * Takes the entry the path points to, and moves the path on to the one after it.
+         * @return The entry, or null if there are no more.
+         */
+        private Entry take() throws DeserializationException, IOException {
+            while(true) {
+                if(path == null) {
+                    path = search(resumeKey, resumeValue);
+                }
+                if(path.empty()) {
+                    return null;
+                }
+                IterationRecord record = path.peek();
+                if(!versions.validate(record.node.location, record.version)) {
+                    path = null;
+                    continue;
+                }
+
+                Entry e = new Entry(record.node.getKey(record.index), record.node.getValue(record.index),
+                        record.node.getPayload(record.index));
+                // entries are unique, so the next one is the first that isn't less than (key, value + 1)
+                resumeKey = e.key;
+                resumeValue = e.value + 1;
+                record.index++;
+                // if we've run off the end, pop us off the stack.
+                if(record.index >= record.node.numKeys) {
+                    // go up a level
+                    path.pop();
+                }
+                // if we weren't a leaf, enter the next child.
+                if(!record.node.isLeaf) {
+                    descend(record.node, record.version, record.node.getChild(record.index));
+                }
+                return e;
+            }
+        }
+
+        // pushes the path down to the leftmost entry under a child
+        private void descend(BTreeNode parent, long parentVersion, long location) throws DeserializationException, IOException {
+            while(true) {
+                long version = versions.awaitUnlocked(location);
+                BTreeNode node = versions.validate(parent.location, parentVersion)
+                        ? fetchNodeOptimistically(location, version) : null;
+                if(node == null) {
+                    path = null;
+                    return;
+                }
+                path.push(new IterationRecord(node, 0, version));
+                if(node.isLeaf) {
+                    return;
+                }
+                parent = node;
+                parentVersion = version;
+                location = node.getChild(0);
             }
         }
 
         @Override
         public boolean hasNext() {
-            return !path.empty();
+            return next != null;
         }
 
         @Override
         public Entry next() {
-            IterationRecord lastRecord = path.peek();
-            Entry e = new Entry(lastRecord.node.keys[lastRecord.index], lastRecord.node.values[lastRecord.index]);
-            lastRecord.index++;
-            // if we've run off the end, pop us off the stack.
-            if(lastRecord.index >= lastRecord.node.numKeys) {
-                // go up a level
-                path.pop();
-            }
-            // if we weren't a leaf, enter the next child.
+            if(next == null) {
+                throw new NoSuchElementException();
+            }
+            Entry e = next;
             try {
-                while(!lastRecord.node.isLeaf) {
-                    lastRecord = new IterationRecord(fetchNode(lastRecord.node.children[lastRecord.index]), 0);
-                    path.push(lastRecord);
-                }
+                next = take();
             } catch(DeserializationException | IOException ex) {
                 throw new RuntimeException(ex);
             }
@@ -0,0 +1,307 @@
+package com.collinswebsite.db;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * A fixed-budget cache of file pages, shared by tables and indices.
+ *
+ * Pages are pinned while in use and can only be evicted once every pin has been released. Victims are chosen with
+ * LRU-2: the page whose second most recent access is oldest goes first, and pages that have only been touched once go
+ * before any page that has been touched twice. This keeps a single sequential scan from flushing out the pages that
+ * repeated lookups keep coming back to.
+ *
+ * Pins that follow each other closely, such as the consecutive rows of one page being fetched, or a read that starts on
+ * the page the last one ended on, are one access rather than a page being come back to. A pin within
+ * {@link #CORRELATED_REFERENCE_PERIOD} pins of the page's last one only moves its last access along.
+ *
+ * Unpinned pages are kept ordered by how soon they should be evicted, so finding a victim doesn't have to look at every
+ * frame. A page's history only changes while it is pinned, when it isn't in that order.
+ *
+ * Writes go through to the file immediately and patch any resident copy, so pages are never dirty and eviction never
+ * has to write anything back.
+ */
+public class BufferPool {
+    public static final int PAGE_SIZE = 4096;
+    public static final BufferPool DEFAULT = new BufferPool(8 * 1024 * 1024);
+    // how many pins, of any page, may come between two pins of a page for them to count as the same access
+    public static final int CORRELATED_REFERENCE_PERIOD = 32;
+
+    private final int maxPages;
+    private final Map<PageKey, Page> pages = new HashMap<>();
+    private int frameCount = 0;
+    // every unpinned frame, the next victim first
+    private final TreeSet<Page> evictable = new TreeSet<>((a, b) -> {
+        int r = Long.compare(a.penultimateAccess, b.penultimateAccess);
+        if(r != 0) {
+            return r;
+        }
+        r = Long.compare(a.lastAccess, b.lastAccess);
+        return r != 0 ? r : Integer.compare(a.frame, b.frame);
+    });
+    private long clock = 0;
+
+    private static class PageKey {
+        private final FileChannel channel;
+        private final long number;
+
+        public PageKey(FileChannel channel, long number) {
+            this.channel = channel;
+            this.number = number;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if(!(o instanceof PageKey)) {
+                return false;
+            }
+            PageKey other = (PageKey) o;
+            return channel == other.channel && number == other.number;
+        }
+
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(channel) * 31 + Long.hashCode(number);
+        }
+    }
+
+    public static class Page {
+        private final ByteBuffer data = ByteBuffer.allocate(PAGE_SIZE);
+        private final int frame; // tells apart pages with the same history
+
+        private Page(int frame) {
+            this.frame = frame;
+        }
+
+        private PageKey key;
+        private int length; // how many bytes of the page actually exist in the file
+        private boolean loaded;
+        private int pinCount;
+
+        // LRU-2 history. A penultimate access of zero means this page has only been referenced once.
+        private long lastAccess;
+        private long penultimateAccess;
+
+        /**
+         * @return A read-only view of the valid part of this page. Only meaningful while the page is pinned.
+         */
+        public ByteBuffer getData() {
+            ByteBuffer view = data.asReadOnlyBuffer();
+            view.position(0);
+            view.limit(length);
+            return view;
+        }
+
+        public long getNumber() {
+            return key.number;
+        }
+
+        private void load() throws IOException {
+            data.clear();
+            long base = key.number * PAGE_SIZE;
+            while(data.hasRemaining()) {
+                int n = key.channel.read(data, base + data.position());
+                if(n <= 0) {
+                    break;
+                }
+            }
+            length = data.position();
+        }
+    }
+
+    /**
+     * @param budget How many bytes of page data this pool may hold at once.
+     */
+    public BufferPool(long budget) {
+        this.maxPages = (int) Math.max(1, budget / PAGE_SIZE);
+    }
+
+    /**
+     * Fetches a page and pins it in memory. Every call must be balanced by a call to {@link #unpin(Page)}.
+     */
+    public Page pin(FileChannel channel, long number) throws IOException {
+        Page page;
+        synchronized(this) {
+            PageKey key = new PageKey(channel, number);
+            page = pages.get(key);
+            if(page == null) {
+                page = allocate();
+                page.key = key;
+                page.loaded = false;
+                page.penultimateAccess = 0;
+                page.lastAccess = 0;
+                pages.put(key, page);
+            } else if(page.pinCount == 0) {
+                evictable.remove(page);
+            }
+            page.pinCount++;
+            clock++;
+            if(clock - page.lastAccess > CORRELATED_REFERENCE_PERIOD) {
+                page.penultimateAccess = page.lastAccess;
+            }
+            page.lastAccess = clock;
+        }
+
+        synchronized(page) {
+            if(!page.loaded) {
+                try {
+                    page.load();
+                } catch(IOException e) {
+                    synchronized(this) {
+                        pages.remove(page.key, page);
+                        page.lastAccess = 0;
+                        page.penultimateAccess = 0;
+                        if(--page.pinCount == 0) {
+                            evictable.add(page);
+                        }
+                    }
+                    throw e;
+                }
+                page.loaded = true;
+            }
+        }
+
+        return page;
+    }
+
+    public synchronized void unpin(Page page) {
+        if(page.pinCount <= 0) {
+            throw new IllegalStateException("page is not pinned");
+        }
+        if(--page.pinCount == 0) {
+            evictable.add(page);
+        }
+    }
+
+    // must be called with the pool lock held
+    private Page allocate() throws IOException {
+        if(frameCount < maxPages) {
+            return new Page(frameCount++);
+        }
+
+        Page victim = evictable.pollFirst();
+        if(victim == null) {
+            throw new IOException("buffer pool exhausted: all " + maxPages + " pages are pinned");
+        }
+
+        if(victim.key != null) {
+            pages.remove(victim.key, victim);
+        }
+        return victim;
+    }
+
+    /**
+     * Reads from a file through the pool.
+     * @return How many bytes were copied into dst. This is less than dst.remaining() only if the end of the file was
+     *         reached.
+     */
+    public int read(FileChannel channel, long position, ByteBuffer dst) throws IOException {
+        int total = 0;
+        while(dst.hasRemaining()) {
+            long number = position / PAGE_SIZE;
+            int offset = (int) (position % PAGE_SIZE);
+            Page page = pin(channel, number);
+            try {
+                int count;
+                synchronized(page) {
+                    count = Math.min(dst.remaining(), page.length - offset);
+                    if(count <= 0) {
+                        break;
+                    }
+                    ByteBuffer src = page.data.duplicate();
+                    src.limit(offset + count);
+                    src.position(offset);
+                    dst.put(src);
+                }
+                total += count;
+                position += count;
+            } finally {
+                unpin(page);
+            }
+        }
+        return total;
+    }
+
+    /**
+     * Writes to a file and updates any pages of it that are currently cached.
+     * @return How many bytes were written.
+     */
+    public int write(FileChannel channel, long position, ByteBuffer src) throws IOException {
+        ByteBuffer image = src.duplicate();
+        int total = 0;
+        while(src.hasRemaining()) {
+            int n = channel.write(src, position + total);
+            if(n <= 0) {
+                throw new EOFException();
+            }
+            total += n;
+        }
+
+        synchronized(this) {
+            for(long number = position / PAGE_SIZE; number * PAGE_SIZE < position + total; number++) {
+                Page page = pages.get(new PageKey(channel, number));
+                if(page == null) {
+                    continue;
+                }
+                synchronized(page) {
+                    if(!page.loaded) {
+                        continue; // whoever is loading it will see the new data
+                    }
+                    long pageBase = number * PAGE_SIZE;
+                    int start = (int) Math.max(0, position - pageBase);
+                    int end = (int) Math.min(PAGE_SIZE, position + total - pageBase);
+                    if(start > page.length) {
+                        // this write left a hole in the cached copy; just forget about it.
+                        page.loaded = false;
+                        continue;
+                    }
+                    ByteBuffer slice = image.duplicate();
+                    slice.position((int) (image.position() + pageBase + start - position));
+                    slice.limit(slice.position() + (end - start));
+                    ByteBuffer target = page.data.duplicate();
+                    target.position(start);
+                    target.put(slice);
+                    page.length = Math.max(page.length, end);
+                }
+            }
+        }
+
+        return total;
+    }
+
+    /**
+     * Drops everything cached past the given position in a file. This must be called after truncating a file.
+     */
+    public synchronized void invalidate(FileChannel channel, long position) {
+        for(Iterator<Map.Entry<PageKey, Page>> it = pages.entrySet().iterator(); it.hasNext(); ) {
+            Page page = it.next().getValue();
+            if(page.key.channel != channel) {
+                continue;
+            }
+            long pageBase = page.key.number * PAGE_SIZE;
+            if(pageBase >= position) {
+                it.remove();
+                synchronized(page) {
+                    page.loaded = false;
+                }
+                // its history is about to change, so it has to leave the order while it does
+                boolean wasEvictable = evictable.remove(page);
+                page.lastAccess = 0;
+                page.penultimateAccess = 0;
+                if(wasEvictable) {
+                    evictable.add(page);
+                }
+            } else if(pageBase + page.length > position) {
+                synchronized(page) {
+                    page.length = (int) (position - pageBase);
+                }
+            }
+        }
+    }
+}
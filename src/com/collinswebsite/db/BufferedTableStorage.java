@@ -0,0 +1,62 @@
+package com.collinswebsite.db;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Table storage that reads through a shared {@link BufferPool}.
+ *
+ * Large reads, like the ones a full scan makes, bypass the pool and go straight to the file. They would gain nothing
+ * from it, and copying through it would cost more than the read. The pool writes through, so the file is always up to
+ * date.
+ */
+public class BufferedTableStorage implements TableStorage {
+    private static final int DIRECT_READ_THRESHOLD = 8 * BufferPool.PAGE_SIZE;
+
+    private final FileChannel channel;
+    private final BufferPool pool;
+
+    public BufferedTableStorage(FileChannel channel, BufferPool pool) {
+        this.channel = channel;
+        this.pool = pool;
+    }
+
+    @Override
+    public int read(long position, ByteBuffer dst) throws IOException {
+        if(dst.remaining() < DIRECT_READ_THRESHOLD) {
+            return pool.read(channel, position, dst);
+        }
+
+        int total = 0;
+        while(dst.hasRemaining()) {
+            int n = channel.read(dst, position + total);
+            if(n <= 0) {
+                break;
+            }
+            total += n;
+        }
+        return total;
+    }
+
+    @Override
+    public int write(long position, ByteBuffer src) throws IOException {
+        return pool.write(channel, position, src);
+    }
+
+    @Override
+    public long size() throws IOException {
+        return channel.size();
+    }
+
+    @Override
+    public void truncate(long size) throws IOException {
+        channel.truncate(size);
+        pool.invalidate(channel, size);
+    }
+
+    @Override
+    public void force() throws IOException {
+        channel.force(false);
+    }
+}
@@ -9,6 +9,7 @@ public class Column {
     private final String name;
     private final DataType type;
     private int position;
+    private int offset;
 
     public Column(String name, DataType type) {
         this.name = name;
@@ -30,4 +31,15 @@ public class Column {
     public int getPosition() {
         return this.position;
     }
+
+    /**
+     * @param offset Where this column's value starts within a serialized row.
+     */
+    public void setOffset(int offset) {
+        this.offset = offset;
+    }
+
+    public int getOffset() {
+        return this.offset;
+    }
 }
@@ -3,12 +3,36 @@ package com.collinswebsite.db;
 import com.collinswebsite.db.miniql.Expression;
 import com.collinswebsite.db.miniql.InvalidExpressionException;
 
+import java.util.Collection;
 import java.util.concurrent.CompletionStage;
 
 public interface Cursor {
     boolean isAtEnd() throws DeserializationException;
+
+    /**
+     * @return The next row, or null if there isn't one ready. If the cursor is not at its end, more rows are on their
+     *         way; see {@link #await()}.
+     */
     Row getNext() throws DeserializationException;
     Table getTable();
+
+    /**
+     * @return A stage that completes once {@link #getNext()} has something new to return, or the cursor has reached
+     *         its end.
+     */
     CompletionStage<Void> await();
     void setFilter(Expression filter) throws InvalidExpressionException;
+
+    /**
+     * Promises that only these columns will be read from the rows this cursor returns, including by its filter.
+     */
+    void setProjection(Collection<Column> columns);
+
+    /**
+     * Lets go of whatever the cursor holds on to, such as temporary files, once nothing more will be read from it. It
+     * doesn't have to have reached its end. Closing must not block, and a cursor built on another one closes that one
+     * too.
+     */
+    default void close() {
+    }
 }
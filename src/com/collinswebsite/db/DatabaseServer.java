@@ -9,14 +9,34 @@ import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
 import java.util.function.BooleanSupplier;
 
 public class DatabaseServer {
+    private static final int IO_THREADS = 4;
+
     private Map<String, Table> tables = new HashMap<>();
 
+    // disk-bound work runs here, so that the selector thread is always free to serve other connections
+    private final ExecutorService ioExecutor = Executors.newFixedThreadPool(IO_THREADS, (r) -> {
+        Thread t = new Thread(r, "db-io");
+        t.setDaemon(true);
+        return t;
+    });
+
+    // big scans are split up and run on every core
+    private final ForkJoinPool scanPool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+
     public DatabaseServer() {
 
     }
@@ -67,16 +87,41 @@ public class DatabaseServer {
                 new Column("country_code", new StringDataType(3)),
                 new Column("district", new StringDataType(30)),
                 new Column("population", new IntegerDataType()));
-        BTreeIndex index = new BTreeIndex(cities.getColumn("name"), "cities-names");
-        for(Iterator<BTreeIndex.Entry> it = index.iterate(new byte[0]); it.hasNext(); ) {
-            BTreeIndex.Entry e = it.next();
+        // lookups by name usually only want these too, so the index carries them and the table needn't be read
+        List<Column> namePayload = Arrays.asList(cities.getColumn("country_code"), cities.getColumn("population"));
+        // index files only match the table if it was closed cleanly; otherwise they're built again from scratch
+        BPlusTreeIndex index = null;
+        if(cities.wasClosedCleanly() && Files.exists(FileSystems.getDefault().getPath("indices", "cities-names"))) {
+            try {
+                index = new BPlusTreeIndex(cities.getColumn("name"), namePayload, "cities-names", BufferPool.DEFAULT);
+            } catch(DeserializationException e) {
+                // made without this payload, in another format, or unreadable. either way, it can be built again from
+                // the table.
+            }
+        }
+        if(index == null) {
+            index = BPlusTreeIndex.build(cities, cities.getColumn("name"), namePayload, "cities-names",
+                    BPlusTreeIndex.DEFAULT_FILL_FACTOR, BufferPool.DEFAULT);
+        }
+        for(Iterator<TableIndex.Entry> it = index.range(null, true, null, true); it.hasNext(); ) {
+            TableIndex.Entry e = it.next();
             System.out.println(new String(e.key) + " -> " + e.value);
         }
         cities.setPrimaryIndex(index);
+        LongBTreeIndex populationIndex;
+        if(cities.wasClosedCleanly()
+                && Files.exists(FileSystems.getDefault().getPath("indices", "cities-population"))) {
+            populationIndex = new LongBTreeIndex(cities.getColumn("population"), "cities-population");
+        } else {
+            populationIndex = LongBTreeIndex.build(cities, cities.getColumn("population"), "cities-population",
+                    LongBTreeIndex.DEFAULT_FILL_FACTOR, BufferPool.DEFAULT);
+        }
+        cities.addIndex(populationIndex);
         db.addTable(cities);
         db.addTable(new Table("test",
                 new Column("first", new IntegerDataType()),
                 new Column("second", new StringDataType(32))));
+        Runtime.getRuntime().addShutdownHook(new Thread(db::close));
 
         try {
             db.launch();
@@ -85,6 +130,20 @@ public class DatabaseServer {
         }
     }
 
+    /**
+     * Closes every table, so that their indexes can be trusted the next time they're opened.
+     */
+    private void close() {
+        for(Table table : tables.values()) {
+            try {
+                table.close();
+            } catch(IOException e) {
+                System.out.println("Failed to close table " + table.getName() + ":");
+                e.printStackTrace();
+            }
+        }
+    }
+
     public Table defaultTable() {
         return tables.values().stream().findFirst().get();
     }
@@ -92,4 +151,12 @@ public class DatabaseServer {
     public Table getTable(String name) {
         return tables.get(name);
     }
+
+    public Executor getIoExecutor() {
+        return ioExecutor;
+    }
+
+    public ForkJoinPool getScanPool() {
+        return scanPool;
+    }
 }
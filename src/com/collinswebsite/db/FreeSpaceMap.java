@@ -0,0 +1,85 @@
+package com.collinswebsite.db;
+
+import java.util.BitSet;
+
+/**
+ * Tracks which rows of a table are free, so that finding space for a new row doesn't touch the disk.
+ *
+ * This is not thread-safe; the owning table only uses it while holding its lock.
+ */
+public class FreeSpaceMap {
+    private final BitSet free = new BitSet();
+    private final int firstRow;
+
+    /**
+     * @param firstRow The lowest row ID that may ever be handed out.
+     */
+    public FreeSpaceMap(int firstRow) {
+        this.firstRow = firstRow;
+    }
+
+    public void markFree(int id) {
+        if(id >= firstRow) {
+            free.set(id);
+        }
+    }
+
+    public void markUsed(int id) {
+        free.clear(id);
+    }
+
+    public boolean isFree(int id) {
+        return free.get(id);
+    }
+
+    /**
+     * Claims the lowest free row.
+     * @return The claimed row's ID, or -1 if there are no free rows.
+     */
+    public int allocate() {
+        int id = free.nextSetBit(firstRow);
+        if(id >= 0) {
+            free.clear(id);
+        }
+        return id;
+    }
+
+    /**
+     * Claims a run of consecutive free rows.
+     * @return The ID of the first row in the run, or -1 if there is no run that long.
+     */
+    public int allocateRun(int length) {
+        int start = free.nextSetBit(firstRow);
+        while(start >= 0) {
+            int end = free.nextClearBit(start);
+            if(end - start >= length) {
+                free.clear(start, start + length);
+                return start;
+            }
+            start = free.nextSetBit(end);
+        }
+        return -1;
+    }
+
+    /**
+     * @return The ID just past the last row that is in use, given how many rows the table has.
+     */
+    public int getUsedEnd(int capacity) {
+        int end = capacity;
+        while(end > firstRow && free.get(end - 1)) {
+            end--;
+        }
+        return end;
+    }
+
+    /**
+     * Forgets about every row at or past the given ID, after the table has been truncated.
+     */
+    public void truncate(int capacity) {
+        free.clear(capacity, Math.max(capacity, free.length()));
+    }
+
+    public int getFreeCount() {
+        return free.cardinality();
+    }
+}
@@ -2,14 +2,25 @@ package com.collinswebsite.db;
 
 import com.collinswebsite.db.miniql.Expression;
 import com.collinswebsite.db.miniql.InvalidExpressionException;
+import com.collinswebsite.db.miniql.SerializedPredicate;
 import com.collinswebsite.db.types.BooleanDataType;
 
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CompletionStage;
 
 public class FullScanCursor implements Cursor {
     private static final int BUFFER_SIZE = 16; // how many rows to attempt to hold
     private static final int REFILL_THRESHOLD = BUFFER_SIZE / 2;
 
+    // Rows are read from the table in chunks. The first chunk is small, in case the caller only wants a few rows, and
+    // each one after that is twice as big as the last until they reach the maximum.
+    private static final int INITIAL_CHUNK_SIZE = 16 * 1024;
+    private static final int MAXIMUM_CHUNK_SIZE = 256 * 1024;
+
     // this array is used as a ring buffer
     private final Row[] rows;
 
@@ -17,15 +28,41 @@ public class FullScanCursor implements Cursor {
     private int writeBufferHead = 0; // tracks how many entries in rows have been written and are valid
     private int readBufferHead = 0; // tracks how many entries in rows have been read out
 
-    private int writeIndex = 0; // tracks the last row ID we requested
-    private int readIndex = 0; // tracks how many rows have been read out or skipped
+    private int writeIndex; // tracks the last row ID we requested
+    private int readIndex; // tracks how many rows have been read out or skipped
+    private final int endId; // the scan stops here, or at the end of the table if that comes first
 
     private final Table table;
-    private Expression filter;
+    private Expression filter; // the part of the filter that has to run against materialized rows
+    private SerializedPredicate serializedFilter; // the part of the filter that runs against the chunk
+
+    // rows are read in here, and only copied out if they pass the filter
+    private ByteBuffer chunk;
+    private int chunkFirstId; // ID of the first row in the chunk
+    private int chunkRows = 0; // how many rows the chunk holds
+    private int chunkIndex = 0; // index within the chunk of the next row to look at
+
+    private Collection<Column> projection;
+    // the part of each row image that gets copied into materialized rows
+    private int projectionStart;
+    private int projectionEnd;
 
     public FullScanCursor(Table table) {
+        this(table, Table.FIRST_ROW_ID, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Creates a cursor that only scans the rows in [firstId, endId).
+     */
+    public FullScanCursor(Table table, int firstId, int endId) {
         this.table = table;
+        this.writeIndex = Math.max(firstId, Table.FIRST_ROW_ID);
+        this.readIndex = this.writeIndex;
+        this.endId = endId;
         this.rows = new Row[BUFFER_SIZE];
+        this.chunk = ByteBuffer.allocate(Math.max(1, INITIAL_CHUNK_SIZE / table.getRowSize()) * table.getRowSize());
+        this.projectionStart = 0;
+        this.projectionEnd = table.getRowSize();
     }
 
     private void compact() {
@@ -38,9 +75,26 @@ public class FullScanCursor implements Cursor {
 
     private void fetchRows() throws DeserializationException {
         compact();
-        while(writeBufferHead < rows.length && writeIndex < table.getCapacity()) {
-            Row r = table.fetch(writeIndex++); // returns null for deleted rows
-            if(r != null && (filter == null || filter.evaluateAsBoolean(r))) {
+        int rowSize = table.getRowSize();
+        while(writeBufferHead < rows.length) {
+            if(chunkIndex >= chunkRows && !readChunk()) {
+                break;
+            }
+
+            int id = chunkFirstId + chunkIndex;
+            int offset = chunkIndex * rowSize;
+            chunkIndex++;
+            writeIndex++;
+
+            Row r = null;
+            // deleted rows, and rows rejected by the serialized filter, are never materialized
+            if(chunk.getLong(offset) == 0 && (serializedFilter == null || serializedFilter.test(chunk, offset))) {
+                r = materialize(id, offset);
+                if(filter != null && !filter.evaluateAsBoolean(r)) {
+                    r = null;
+                }
+            }
+            if(r != null) {
                 rows[writeBufferHead++] = r;
             } else {
                 readIndex++; // skip
@@ -48,9 +102,43 @@ public class FullScanCursor implements Cursor {
         }
     }
 
+    /**
+     * Reads the next chunk of rows from the table.
+     * @return false if there are no more rows to read.
+     */
+    private boolean readChunk() throws DeserializationException {
+        int end = getEnd();
+        if(writeIndex >= end) {
+            return false;
+        }
+
+        // read ahead further every time we come back for more
+        if(chunkRows > 0 && chunk.capacity() < MAXIMUM_CHUNK_SIZE) {
+            int rowSize = table.getRowSize();
+            chunk = ByteBuffer.allocate(Math.max(1, Math.min(chunk.capacity() * 2, MAXIMUM_CHUNK_SIZE) / rowSize) * rowSize);
+        }
+
+        chunk.clear();
+        chunk.limit(Math.min(chunk.capacity(), (end - writeIndex) * table.getRowSize()));
+        chunkFirstId = writeIndex;
+        chunkRows = table.readRows(writeIndex, chunk);
+        chunkIndex = 0;
+        return chunkRows > 0;
+    }
+
+    private Row materialize(int id, int offset) {
+        byte[] data = new byte[projectionEnd - projectionStart];
+        System.arraycopy(chunk.array(), chunk.arrayOffset() + offset + projectionStart, data, 0, data.length);
+        return new Row(table, id, ByteBuffer.wrap(data), projectionStart);
+    }
+
     @Override
     public boolean isAtEnd() {
-        return readIndex >= table.getCapacity();
+        return readIndex >= getEnd();
+    }
+
+    private int getEnd() {
+        return Math.min(table.getCapacity(), endId);
     }
 
     @Override
@@ -71,7 +159,9 @@ public class FullScanCursor implements Cursor {
 
     @Override
     public CompletionStage<Void> await() {
-        throw new IllegalStateException(); // with this synchronous implementation, there should never be a need to await.
+        // this synchronous implementation only returns null from getNext() when it has caught up with the end of the
+        // table, so there is never anything to wait for.
+        return CompletableFuture.completedFuture(null);
     }
 
     @Override
@@ -85,5 +175,37 @@ public class FullScanCursor implements Cursor {
             throw new InvalidExpressionException("expected boolean expression");
         }
         this.filter = filter;
+        this.serializedFilter = filter.toSerializedPredicate();
+        if(this.serializedFilter != null) {
+            this.filter = null; // it's all handled by the serialized filter
+        }
+        updateProjection();
+    }
+
+    @Override
+    public void setProjection(Collection<Column> columns) {
+        this.projection = columns;
+        updateProjection();
+    }
+
+    /**
+     * Works out the smallest part of each row image that covers every projected column, plus whatever the filter needs
+     * to read from materialized rows.
+     */
+    private void updateProjection() {
+        if(projection == null) {
+            return; // no projection; materialize whole rows
+        }
+        List<Column> needed = new ArrayList<>(projection);
+        if(filter != null) {
+            filter.collectColumns(needed);
+        }
+        if(needed.isEmpty()) {
+            projectionStart = 0;
+            projectionEnd = 0;
+            return;
+        }
+        projectionStart = needed.stream().mapToInt(Column::getOffset).min().getAsInt();
+        projectionEnd = needed.stream().mapToInt((c) -> c.getOffset() + c.getType().getSize()).max().getAsInt();
     }
 }
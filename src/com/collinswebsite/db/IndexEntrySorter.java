@@ -0,0 +1,210 @@
+package com.collinswebsite.db;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+
+/**
+ * Sorts index entries by key and then by value, the order every index keeps them in.
+ *
+ * Entries are collected in memory until they pass the memory budget. Then they are sorted and written out to a
+ * temporary file as a run, and the sorted result is a merge of all the runs. Close the sorter to delete the runs.
+ */
+public class IndexEntrySorter implements Closeable {
+    // a rough guess at what an entry costs on the heap, on top of its key bytes
+    private static final int ENTRY_OVERHEAD = 64;
+    private static final int STREAM_BUFFER_SIZE = 64 * 1024;
+
+    private static final Comparator<TableIndex.Entry> ORDER = (a, b) -> {
+        int r = compare(a.key, b.key);
+        return r != 0 ? r : Long.compare(a.value, b.value);
+    };
+
+    private final long memoryBudget;
+    private List<TableIndex.Entry> buffer = new ArrayList<>();
+    private long bufferedBytes = 0;
+    private final List<Path> runs = new ArrayList<>();
+    private final List<Long> runLengths = new ArrayList<>();
+    private final List<DataInputStream> openRuns = new ArrayList<>();
+    private long count = 0;
+
+    /**
+     * @param memoryBudget Roughly how many bytes of entries to hold in memory before spilling them to disk.
+     */
+    public IndexEntrySorter(long memoryBudget) {
+        this.memoryBudget = memoryBudget;
+    }
+
+    private static int compare(byte[] a, byte[] b) {
+        for(int i = 0; i < a.length && i < b.length; i++) {
+            if(a[i] != b[i]) {
+                // make unsigned
+                int aByte = a[i] & 0xFF;
+                int bByte = b[i] & 0xFF;
+                return aByte - bByte;
+            }
+        }
+        return a.length - b.length;
+    }
+
+    public void add(byte[] key, long value) throws IOException {
+        add(key, value, null);
+    }
+
+    /**
+     * @param payload Carried along with the entry, or null.
+     */
+    public void add(byte[] key, long value, byte[] payload) throws IOException {
+        buffer.add(new TableIndex.Entry(key, value, payload));
+        bufferedBytes += key.length + (payload == null ? 0 : payload.length) + ENTRY_OVERHEAD;
+        count++;
+        if(bufferedBytes >= memoryBudget) {
+            spill();
+        }
+    }
+
+    /**
+     * @return How many entries have been added.
+     */
+    public long size() {
+        return count;
+    }
+
+    // sorts what's in memory and writes it out as a run
+    private void spill() throws IOException {
+        if(buffer.isEmpty()) {
+            return;
+        }
+        buffer.sort(ORDER);
+        Path run = Files.createTempFile("index-sort", ".run");
+        runs.add(run);
+        runLengths.add((long) buffer.size());
+        try(DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(Files.newOutputStream(run), STREAM_BUFFER_SIZE))) {
+            for(TableIndex.Entry e : buffer) {
+                out.writeShort(e.key.length);
+                out.write(e.key);
+                out.writeLong(e.value);
+                out.writeShort(e.payload == null ? 0 : e.payload.length);
+                if(e.payload != null) {
+                    out.write(e.payload);
+                }
+            }
+        }
+        buffer = new ArrayList<>();
+        bufferedBytes = 0;
+    }
+
+    /**
+     * Finishes the sort. Nothing more may be added after this is called.
+     * @return Every entry that was added, in order.
+     */
+    public Iterator<TableIndex.Entry> sorted() throws IOException {
+        if(runs.isEmpty()) {
+            buffer.sort(ORDER);
+            return buffer.iterator();
+        }
+        spill();
+        List<RunReader> readers = new ArrayList<>();
+        for(int i = 0; i < runs.size(); i++) {
+            DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(Files.newInputStream(runs.get(i)), STREAM_BUFFER_SIZE));
+            openRuns.add(in);
+            readers.add(new RunReader(in, runLengths.get(i)));
+        }
+        return new MergeIterator(readers);
+    }
+
+    @Override
+    public void close() throws IOException {
+        for(DataInputStream in : openRuns) {
+            in.close();
+        }
+        for(Path run : runs) {
+            Files.deleteIfExists(run);
+        }
+        buffer = new ArrayList<>();
+    }
+
+    private static class RunReader {
+        private final DataInputStream in;
+        private long remaining;
+        private TableIndex.Entry current;
+
+        public RunReader(DataInputStream in, long length) {
+            this.in = in;
+            this.remaining = length;
+        }
+
+        /**
+         * @return false once the run is used up.
+         */
+        public boolean advance() throws IOException {
+            if(remaining == 0) {
+                current = null;
+                return false;
+            }
+            remaining--;
+            byte[] key = new byte[in.readUnsignedShort()];
+            in.readFully(key);
+            long value = in.readLong();
+            byte[] payload = null;
+            int payloadLength = in.readUnsignedShort();
+            if(payloadLength > 0) {
+                payload = new byte[payloadLength];
+                in.readFully(payload);
+            }
+            current = new TableIndex.Entry(key, value, payload);
+            return true;
+        }
+    }
+
+    /**
+     * Merges sorted runs by repeatedly taking the smallest of their heads.
+     */
+    private static class MergeIterator implements Iterator<TableIndex.Entry> {
+        private final PriorityQueue<RunReader> heads =
+                new PriorityQueue<>((a, b) -> ORDER.compare(a.current, b.current));
+
+        public MergeIterator(List<RunReader> readers) throws IOException {
+            for(RunReader r : readers) {
+                if(r.advance()) {
+                    heads.add(r);
+                }
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return !heads.isEmpty();
+        }
+
+        @Override
+        public TableIndex.Entry next() {
+            RunReader r = heads.poll();
+            if(r == null) {
+                throw new NoSuchElementException();
+            }
+            TableIndex.Entry e = r.current;
+            try {
+                if(r.advance()) {
+                    heads.add(r);
+                }
+            } catch(IOException ex) {
+                throw new RuntimeException(ex);
+            }
+            return e;
+        }
+    }
+}
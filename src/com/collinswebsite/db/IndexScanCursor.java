@@ -0,0 +1,198 @@
+package com.collinswebsite.db;
+
+import com.collinswebsite.db.miniql.Expression;
+import com.collinswebsite.db.miniql.InvalidExpressionException;
+import com.collinswebsite.db.miniql.SerializedPredicate;
+import com.collinswebsite.db.types.BooleanDataType;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PrimitiveIterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+
+/**
+ * Returns the rows whose keys in an index fall within a range, in key order.
+ *
+ * Every row is checked against the filter after it has been fetched, so the index only has to narrow down which rows
+ * to look at. This cursor blocks on the disk, so the server runs it inside an {@link AsyncScanCursor}.
+ *
+ * If the projection and the filter only need columns the index stores, as its key or in its payload, rows aren't
+ * fetched at all: each one is rebuilt from its index entry instead. Columns the index doesn't store are left blank in
+ * those rows.
+ */
+public class IndexScanCursor implements Cursor {
+    private final Table table;
+    private final TableIndex index;
+    private final byte[] lowerBound;
+    private final boolean lowerInclusive;
+    private final byte[] upperBound;
+    private final boolean upperInclusive;
+    private Expression filter;
+    private SerializedPredicate compiledFilter; // the filter, if it could be compiled
+    private Collection<Column> projection; // null if every column may be read
+
+    private boolean started = false;
+    private PrimitiveIterator.OfLong rowIds; // when rows are fetched
+    private Iterator<TableIndex.Entry> entries; // when rows are rebuilt from the index
+    private Row next; // null once the scan is over
+
+    /**
+     * @param lowerBound The smallest key to return, or null to start from the beginning of the index.
+     * @param upperBound The largest key to return, or null to carry on to the end of the index.
+     */
+    public IndexScanCursor(Table table, TableIndex index,
+                           byte[] lowerBound, boolean lowerInclusive,
+                           byte[] upperBound, boolean upperInclusive) {
+        this.table = table;
+        this.index = index;
+        this.lowerBound = lowerBound;
+        this.lowerInclusive = lowerInclusive;
+        this.upperBound = upperBound;
+        this.upperInclusive = upperInclusive;
+    }
+
+    private void start() throws DeserializationException {
+        if(started) {
+            return;
+        }
+        started = true;
+        try {
+            if(isCovered()) {
+                entries = index.range(lowerBound, lowerInclusive, upperBound, upperInclusive);
+            } else {
+                rowIds = index.rangeValues(lowerBound, lowerInclusive, upperBound, upperInclusive);
+            }
+        } catch(IOException e) {
+            throw new DeserializationException(e);
+        }
+        advance();
+    }
+
+    /**
+     * @return Whether the index stores every column that will be read from the rows.
+     */
+    private boolean isCovered() {
+        if(projection == null) {
+            return false;
+        }
+        List<Column> needed = new ArrayList<>(projection);
+        if(filter != null) {
+            filter.collectColumns(needed);
+        }
+        for(Column c : needed) {
+            if(c != index.getColumn() && !index.getPayloadColumns().contains(c)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void advance() throws DeserializationException {
+        next = null;
+        if(entries != null) {
+            while(entries.hasNext()) {
+                Row r = rebuildRow(entries.next());
+                if(passesFilter(r)) {
+                    next = r;
+                    return;
+                }
+            }
+            return;
+        }
+        while(rowIds.hasNext()) {
+            long id = rowIds.nextLong();
+
+            // the row may have been deleted, or reused for something else, since the index was built
+            if(id >= table.getCapacity()) {
+                continue;
+            }
+            Row r = table.fetch((int) id);
+            if(r != null && passesFilter(r)) {
+                next = r;
+                return;
+            }
+        }
+    }
+
+    /**
+     * Builds a row image holding the columns an index entry stores.
+     */
+    private Row rebuildRow(TableIndex.Entry e) throws DeserializationException {
+        ByteBuffer image = ByteBuffer.allocate(table.getRowSize());
+        Column column = index.getColumn();
+        image.position(column.getOffset());
+        try {
+            column.getType().serialize(image, TableIndex.decodeKey(e.key, column.getType()));
+        } catch(SerializationException ex) {
+            throw new DeserializationException();
+        }
+        int payloadOffset = 0;
+        for(Column c : index.getPayloadColumns()) {
+            image.position(c.getOffset());
+            image.put(e.payload, payloadOffset, c.getType().getSize());
+            payloadOffset += c.getType().getSize();
+        }
+        image.clear();
+        return new Row(table, (int) e.value, image);
+    }
+
+    @Override
+    public boolean isAtEnd() throws DeserializationException {
+        start();
+        return next == null;
+    }
+
+    @Override
+    public Row getNext() throws DeserializationException {
+        start();
+        Row r = next;
+        if(r != null) {
+            advance();
+        }
+        return r;
+    }
+
+    public TableIndex getIndex() {
+        return index;
+    }
+
+    @Override
+    public Table getTable() {
+        return table;
+    }
+
+    @Override
+    public CompletionStage<Void> await() {
+        // this cursor blocks instead of returning null from getNext(), so there is never anything to wait for.
+        return CompletableFuture.completedFuture(null);
+    }
+
+    @Override
+    public void setFilter(Expression filter) throws InvalidExpressionException {
+        filter.validate();
+        if(!(filter.getType() instanceof BooleanDataType)) {
+            throw new InvalidExpressionException("expected boolean expression");
+        }
+        this.filter = filter;
+        this.compiledFilter = filter.toSerializedPredicate();
+    }
+
+    private boolean passesFilter(Row r) {
+        if(compiledFilter != null) {
+            return r.matches(compiledFilter);
+        }
+        return filter == null || filter.evaluateAsBoolean(r);
+    }
+
+    @Override
+    public void setProjection(Collection<Column> columns) {
+        // fetched rows are read whole; there's nothing to save by reading less of them. but if the index has
+        // everything, they needn't be fetched at all.
+        this.projection = columns;
+    }
+}
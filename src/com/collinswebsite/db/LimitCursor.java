@@ -0,0 +1,87 @@
+package com.collinswebsite.db;
+
+import com.collinswebsite.db.miniql.Expression;
+import com.collinswebsite.db.miniql.InvalidExpressionException;
+
+import java.util.Collection;
+import java.util.concurrent.CompletionStage;
+
+/**
+ * Skips the first rows of another cursor, and then stops after a number of them. Once the limit is reached, nothing
+ * more is read from the other cursor.
+ */
+public class LimitCursor implements Cursor {
+    private final Cursor base;
+    private final long limit;
+    private long toSkip;
+    private long returned = 0;
+
+    /**
+     * @param limit How many rows to return.
+     * @param offset How many rows to skip before that.
+     */
+    public LimitCursor(Cursor base, long limit, long offset) {
+        this.base = base;
+        this.limit = limit;
+        this.toSkip = offset;
+    }
+
+    /**
+     * @return false if there are still rows to skip that aren't ready yet.
+     */
+    private boolean skip() throws DeserializationException {
+        while(toSkip > 0) {
+            if(base.getNext() == null) {
+                return false;
+            }
+            toSkip--;
+        }
+        return true;
+    }
+
+    @Override
+    public boolean isAtEnd() throws DeserializationException {
+        if(returned >= limit) {
+            return true;
+        }
+        skip();
+        return base.isAtEnd();
+    }
+
+    @Override
+    public Row getNext() throws DeserializationException {
+        if(returned >= limit || !skip()) {
+            return null;
+        }
+        Row r = base.getNext();
+        if(r != null) {
+            returned++;
+        }
+        return r;
+    }
+
+    @Override
+    public Table getTable() {
+        return base.getTable();
+    }
+
+    @Override
+    public CompletionStage<Void> await() {
+        return base.await();
+    }
+
+    @Override
+    public void setFilter(Expression filter) throws InvalidExpressionException {
+        base.setFilter(filter);
+    }
+
+    @Override
+    public void setProjection(Collection<Column> columns) {
+        base.setProjection(columns);
+    }
+
+    @Override
+    public void close() {
+        base.close();
+    }
+}
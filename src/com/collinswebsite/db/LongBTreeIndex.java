@@ -0,0 +1,871 @@
+package com.collinswebsite.db;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PrimitiveIterator;
+
+/**
+ * A B+tree over integer keys, stored in a file of page-sized nodes. Keys are kept as plain longs rather than encoded
+ * bytes, so nodes are just arrays of longs: leaves are [keys][values], and inner nodes are [keys][values][children].
+ * Searches compare longs in place in the page, and range scans hand out row IDs without boxing anything.
+ *
+ * Like {@link BPlusTreeIndex}, every entry lives in a leaf and each leaf points to the next, inner nodes hold
+ * separators, overflowing nodes split on the way back up, and deletes never merge nodes. Like {@link BTreeIndex},
+ * writers take the index's lock and readers use optimistic lock coupling, and entries are ordered by key and then by
+ * value.
+ *
+ * The byte[] methods of {@link TableIndex} take keys encoded by {@link TableIndex#encodeKey(Object)} and convert them.
+ */
+public class LongBTreeIndex implements TableIndex {
+    private static final int FORMAT_MAGIC = 0x4C425431; // "LBT1"
+    private static final int LOCATION_SIZE = 8;
+    private static final int HEADER_SIZE = 4 + LOCATION_SIZE; // magic, root
+    private static final int ROOT_OFFSET = HEADER_SIZE - LOCATION_SIZE;
+    private static final long NO_NODE = -1;
+
+    private static final int NODE_SIZE = BufferPool.PAGE_SIZE;
+    private static final int NODE_HEADER_SIZE = 1 + 2 + LOCATION_SIZE; // is leaf, number of keys, next leaf
+    private static final int MAX_LEAF_KEYS = (NODE_SIZE - NODE_HEADER_SIZE) / (8 + 8);
+    private static final int MAX_INNER_KEYS = (NODE_SIZE - NODE_HEADER_SIZE - LOCATION_SIZE) / (8 + 8 + LOCATION_SIZE);
+
+    public static final double DEFAULT_FILL_FACTOR = 0.9;
+    private static final long SORT_MEMORY_BUDGET = 64 * 1024 * 1024;
+
+    private final Column column;
+    private final FileChannel channel;
+    private final BufferPool pool;
+
+    // readers take no locks. they check each node's version before and after reading it, and start over if a writer
+    // changed it in the meantime.
+    private final NodeVersions versions = new NodeVersions();
+    private volatile long rootLocation; // only changed with the lock held
+
+    // guarded by this
+    private final List<Long> lockedNodes = new ArrayList<>(); // by the write in progress
+    private long nodeCount; // how many nodes the file has room for
+    private final ByteBuffer encodeBuffer = ByteBuffer.allocate(NODE_SIZE);
+
+    // cleared if a write fails part way through, since the tree may be missing the entry or half way through a change
+    private volatile boolean upToDate = true;
+
+    /**
+     * A node is either a read-only view that reads what it is asked for straight out of its page, or, once
+     * {@link #materialize()} has been called, a decoded copy that can be modified and stored.
+     */
+    private class Node {
+        private final long location;
+        private int numKeys;
+        private boolean isLeaf;
+        private long next = NO_NODE; // leaves only
+
+        // the encoded node, until it is materialized
+        private ByteBuffer data;
+
+        // the decoded node, once it is materialized. these have room for one entry more than fits in a page, so that
+        // a node can overflow before it is split.
+        private long[] keys;
+        private long[] values;
+        private long[] children;
+
+        /**
+         * Creates an empty, materialized node.
+         */
+        public Node(long location, boolean isLeaf) {
+            this.location = location;
+            this.isLeaf = isLeaf;
+            this.keys = new long[getMaxKeys() + 1];
+            this.values = new long[getMaxKeys() + 1];
+            this.children = new long[isLeaf ? 0 : getMaxKeys() + 2];
+        }
+
+        /**
+         * Creates a read-only view of an encoded node.
+         * @param length How many bytes of the page were actually read.
+         */
+        public Node(long location, ByteBuffer data, int length) throws DeserializationException {
+            this.location = location;
+            this.data = data;
+            this.isLeaf = data.get(0) != 0;
+            this.numKeys = data.getShort(1);
+            this.next = data.getLong(3);
+            if(numKeys < 0 || numKeys > getMaxKeys() || getEnd() > length) {
+                throw new DeserializationException();
+            }
+        }
+
+        private int getMaxKeys() {
+            return isLeaf ? MAX_LEAF_KEYS : MAX_INNER_KEYS;
+        }
+
+        private int getEnd() {
+            return NODE_HEADER_SIZE + numKeys * 16 + (isLeaf ? 0 : (numKeys + 1) * LOCATION_SIZE);
+        }
+
+        public long getKey(int i) {
+            if(keys != null) {
+                return keys[i];
+            }
+            return data.getLong(NODE_HEADER_SIZE + i * 8);
+        }
+
+        public long getValue(int i) {
+            if(values != null) {
+                return values[i];
+            }
+            return data.getLong(NODE_HEADER_SIZE + (numKeys + i) * 8);
+        }
+
+        public long getChild(int i) {
+            if(children != null) {
+                return children[i];
+            }
+            return data.getLong(NODE_HEADER_SIZE + numKeys * 16 + i * LOCATION_SIZE);
+        }
+
+        /**
+         * Compares an entry with the i-th entry in this node.
+         */
+        public int compareEntry(long key, long value, int i) {
+            int r = Long.compare(key, getKey(i));
+            if(r != 0) {
+                return r;
+            }
+            return Long.compare(value, getValue(i));
+        }
+
+        /**
+         * @return The index of the first entry that is not less than (key, value), or the number of keys if there
+         *         isn't one.
+         */
+        public int lowerBound(long key, long value) {
+            int low = 0;
+            int high = numKeys;
+            while(low < high) {
+                int middle = (low + high) >>> 1;
+                if(compareEntry(key, value, middle) > 0) {
+                    low = middle + 1;
+                } else {
+                    high = middle;
+                }
+            }
+            return low;
+        }
+
+        /**
+         * @return Which child of this inner node the entry belongs under.
+         */
+        public int findChild(long key, long value) {
+            int i = lowerBound(key, value);
+            // a separator is the first entry of the subtree to its right
+            if(i < numKeys && compareEntry(key, value, i) == 0) {
+                i++;
+            }
+            return i;
+        }
+
+        /**
+         * Decodes the whole node so that it can be modified.
+         */
+        public void materialize() {
+            if(keys != null) {
+                return;
+            }
+            long[] decodedKeys = new long[getMaxKeys() + 1];
+            long[] decodedValues = new long[getMaxKeys() + 1];
+            long[] decodedChildren = new long[isLeaf ? 0 : getMaxKeys() + 2];
+            for(int i = 0; i < numKeys; i++) {
+                decodedKeys[i] = getKey(i);
+                decodedValues[i] = getValue(i);
+            }
+            if(!isLeaf) {
+                for(int i = 0; i <= numKeys; i++) {
+                    decodedChildren[i] = getChild(i);
+                }
+            }
+            keys = decodedKeys;
+            values = decodedValues;
+            children = decodedChildren;
+            data = null;
+        }
+
+        // must be called with the lock held, on a materialized node that fits in a page
+        public void store() throws IOException {
+            lockNode(location);
+            encode(encodeBuffer);
+            pool.write(channel, getNodePosition(location), encodeBuffer);
+        }
+
+        /**
+         * Encodes this materialized node into a buffer and flips it, ready to be written out.
+         */
+        public void encode(ByteBuffer buffer) {
+            buffer.clear();
+            buffer.put((byte) (isLeaf ? 1 : 0));
+            buffer.putShort((short) numKeys);
+            buffer.putLong(next);
+            for(int i = 0; i < numKeys; i++) {
+                buffer.putLong(keys[i]);
+            }
+            for(int i = 0; i < numKeys; i++) {
+                buffer.putLong(values[i]);
+            }
+            if(!isLeaf) {
+                for(int i = 0; i <= numKeys; i++) {
+                    buffer.putLong(children[i]);
+                }
+            }
+            buffer.flip();
+        }
+    }
+
+    /**
+     * What a node that split hands up to its parent: the separator between its halves, and where the right half went.
+     */
+    private static class Split {
+        public final long key;
+        public final long value;
+        public final long right;
+
+        public Split(long key, long value, long right) {
+            this.key = key;
+            this.value = value;
+            this.right = right;
+        }
+    }
+
+    public LongBTreeIndex(Column name, String fileName) throws IOException, DeserializationException {
+        this(name, fileName, BufferPool.DEFAULT);
+    }
+
+    public LongBTreeIndex(Column name, String fileName, BufferPool pool) throws IOException, DeserializationException {
+        this(name, FileSystems.getDefault().getPath("indices", fileName), pool);
+    }
+
+    private LongBTreeIndex(Column column, Path path, BufferPool pool) throws IOException, DeserializationException {
+        this.column = column;
+        this.pool = pool;
+        this.channel = FileChannel.open(path,
+                StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+
+        ByteBuffer headerBuffer = ByteBuffer.allocate(HEADER_SIZE);
+        if(pool.read(channel, 0, headerBuffer) != HEADER_SIZE) {
+            throw new DeserializationException(new EOFException());
+        }
+        headerBuffer.flip();
+        if(headerBuffer.getInt() != FORMAT_MAGIC) {
+            throw new DeserializationException();
+        }
+        this.rootLocation = headerBuffer.getLong();
+
+        this.nodeCount = (channel.size() - 1) / NODE_SIZE;
+        fetchNode(rootLocation); // make sure there's a tree there
+    }
+
+    /**
+     * Creates a new, empty index file, replacing any that is already there.
+     */
+    public static LongBTreeIndex create(Column column, String fileName, BufferPool pool)
+            throws IOException, DeserializationException {
+        Path path = FileSystems.getDefault().getPath("indices", fileName);
+        try(FileChannel channel = FileChannel.open(path,
+                StandardOpenOption.WRITE,
+                StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(FORMAT_MAGIC);
+            header.putLong(0);
+            header.flip();
+            writeFully(channel, header, 0);
+
+            // the root starts out as an empty leaf at location 0
+            ByteBuffer node = ByteBuffer.allocate(NODE_HEADER_SIZE);
+            node.put((byte) 1);
+            node.putShort((short) 0);
+            node.putLong(NO_NODE);
+            node.flip();
+            writeFully(channel, node, getNodePosition(0));
+        }
+        return new LongBTreeIndex(column, path, pool);
+    }
+
+    /**
+     * Builds an index of an integer column from scratch, replacing any file that is already there. Every (key, row ID)
+     * pair is sorted, spilling to temporary files if they don't fit in memory, and the tree is then written out
+     * bottom-up in one sequential pass.
+     *
+     * Nothing may write to the table until the index has been built and registered with it.
+     * @param fillFactor How full to pack each node, from 0.5 to 1. Leaving room in them makes later inserts cheaper.
+     */
+    public static LongBTreeIndex build(Table table, Column column, String fileName, double fillFactor, BufferPool pool)
+            throws IOException, DeserializationException {
+        if(fillFactor < 0.5 || fillFactor > 1) {
+            throw new IllegalArgumentException("fill factor must be between 0.5 and 1");
+        }
+
+        LongBTreeIndex index = create(column, fileName, pool);
+        // encoded keys sort in the same order as the longs they came from
+        try(IndexEntrySorter sorter = new IndexEntrySorter(SORT_MEMORY_BUDGET)) {
+            FullScanCursor cursor = table.createFullTableScanCursor();
+            cursor.setProjection(Collections.singletonList(column));
+            Row r;
+            while((r = cursor.getNext()) != null) {
+                sorter.add(TableIndex.encodeKey(r.getLongForColumn(column)), r.getId());
+            }
+            synchronized(index) {
+                index.load(sorter.sorted(), sorter.size(), fillFactor);
+            }
+        }
+        return index;
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer src, long position) throws IOException {
+        while(src.hasRemaining()) {
+            position += channel.write(src, position);
+        }
+    }
+
+    private static long getNodePosition(long location) {
+        return (location + 1) * NODE_SIZE; // the header has the first page to itself
+    }
+
+    /**
+     * Turns a key encoded by {@link TableIndex#encodeKey(Object)} back into the long it came from.
+     */
+    private static long decodeKey(byte[] key) {
+        if(key.length != 8) {
+            throw new IllegalArgumentException("expected an integer key");
+        }
+        return ByteBuffer.wrap(key).getLong() ^ Long.MIN_VALUE;
+    }
+
+    @Override
+    public Column getColumn() {
+        return column;
+    }
+
+    private Node fetchNode(long location) throws DeserializationException, IOException {
+        ByteBuffer page = ByteBuffer.allocate(NODE_SIZE);
+        int length = pool.read(channel, getNodePosition(location), page);
+        if(length < NODE_HEADER_SIZE) {
+            throw new DeserializationException(new EOFException());
+        }
+        return new Node(location, page, length);
+    }
+
+    // must be called with the lock held
+    private Node fetchNodeForWrite(long location) throws DeserializationException, IOException {
+        Node node = fetchNode(location);
+        node.materialize();
+        return node;
+    }
+
+    /**
+     * Reads a node that a reader is about to use. A writer may be changing it at the same time, so it might not decode;
+     * that only counts as an error if the version shows that nothing was changing it.
+     * @return The node, or null if it changed while it was being read.
+     */
+    private Node fetchNodeOptimistically(long location, long version) throws DeserializationException, IOException {
+        Node node;
+        try {
+            node = fetchNode(location);
+        } catch(DeserializationException e) {
+            if(versions.validate(location, version)) {
+                throw e;
+            }
+            return null;
+        }
+        return versions.validate(location, version) ? node : null;
+    }
+
+    /**
+     * Where a search ended up: a leaf, the version it was read at, and the first entry in it not less than what was
+     * searched for.
+     */
+    private static class Position {
+        public final Node leaf;
+        public final long version;
+        public final int index;
+
+        public Position(Node leaf, long version, int index) {
+            this.leaf = leaf;
+            this.version = version;
+            this.index = index;
+        }
+    }
+
+    /**
+     * Finds the leaf that (key, value) belongs in, without taking any locks. Each child is only trusted if its parent
+     * hadn't changed by the time the child's version was read; otherwise, the search starts over from the root.
+     */
+    private Position search(long key, long value) throws DeserializationException, IOException {
+        restart:
+        while(true) {
+            long location = rootLocation;
+            long version = versions.awaitUnlocked(location);
+            Node node = fetchNodeOptimistically(location, version);
+            if(node == null || rootLocation != location) {
+                continue;
+            }
+
+            while(!node.isLeaf) {
+                long childLocation = node.getChild(node.findChild(key, value));
+                long childVersion = versions.awaitUnlocked(childLocation);
+                if(!versions.validate(location, version)) {
+                    continue restart;
+                }
+                Node child = fetchNodeOptimistically(childLocation, childVersion);
+                if(child == null) {
+                    continue restart;
+                }
+                location = childLocation;
+                version = childVersion;
+                node = child;
+            }
+            return new Position(node, version, node.lowerBound(key, value));
+        }
+    }
+
+    /**
+     * Scans the entries with keys in [lower, upper], both inclusive.
+     */
+    public Scan scan(long lower, long upper) {
+        return new Scan(lower, upper);
+    }
+
+    @Override
+    public Iterator<Entry> range(byte[] lower, boolean lowerInclusive, byte[] upper, boolean upperInclusive) {
+        Scan scan = scan(lower, lowerInclusive, upper, upperInclusive);
+        return new Iterator<Entry>() {
+            @Override
+            public boolean hasNext() {
+                return scan.hasNext();
+            }
+
+            @Override
+            public Entry next() {
+                long value = scan.nextLong();
+                return new Entry(TableIndex.encodeKey(scan.getKey()), value);
+            }
+        };
+    }
+
+    @Override
+    public PrimitiveIterator.OfLong rangeValues(byte[] lower, boolean lowerInclusive,
+                                                byte[] upper, boolean upperInclusive) {
+        return scan(lower, lowerInclusive, upper, upperInclusive);
+    }
+
+    private Scan scan(byte[] lower, boolean lowerInclusive, byte[] upper, boolean upperInclusive) {
+        long first = Long.MIN_VALUE;
+        long last = Long.MAX_VALUE;
+        boolean empty = false;
+        if(lower != null) {
+            first = decodeKey(lower);
+            if(!lowerInclusive) {
+                empty |= first == Long.MAX_VALUE;
+                first++;
+            }
+        }
+        if(upper != null) {
+            last = decodeKey(upper);
+            if(!upperInclusive) {
+                empty |= last == Long.MIN_VALUE;
+                last--;
+            }
+        }
+        return empty ? new Scan(0, -1) : new Scan(first, last);
+    }
+
+    @Override
+    public void insert(byte[] key, long value) throws IOException {
+        insert(decodeKey(key), value);
+    }
+
+    public synchronized void insert(long key, long value) throws IOException {
+        try {
+            Split split = insert(rootLocation, key, value);
+            if(split != null) {
+                // the only way the tree gets taller: a new root over the two halves of the old one
+                Node newRoot = allocateNode(false);
+                newRoot.numKeys = 1;
+                newRoot.keys[0] = split.key;
+                newRoot.values[0] = split.value;
+                newRoot.children[0] = rootLocation;
+                newRoot.children[1] = split.right;
+                newRoot.store();
+                setRootLocation(newRoot.location);
+            }
+        } catch(IOException | DeserializationException e) {
+            upToDate = false;
+            throw e instanceof IOException ? (IOException) e : new IOException(e);
+        } finally {
+            unlockNodes();
+        }
+    }
+
+    /**
+     * Inserts an entry into the subtree under a node.
+     * @return How the node split, or null if it didn't have to.
+     */
+    private Split insert(long location, long key, long value) throws IOException, DeserializationException {
+        Node node = fetchNodeForWrite(location);
+        if(node.isLeaf) {
+            int i = node.lowerBound(key, value);
+            System.arraycopy(node.keys, i, node.keys, i + 1, node.numKeys - i);
+            System.arraycopy(node.values, i, node.values, i + 1, node.numKeys - i);
+            node.keys[i] = key;
+            node.values[i] = value;
+            node.numKeys++;
+        } else {
+            int i = node.findChild(key, value);
+            Split split = insert(node.children[i], key, value);
+            if(split == null) {
+                return null;
+            }
+            System.arraycopy(node.keys, i, node.keys, i + 1, node.numKeys - i);
+            System.arraycopy(node.values, i, node.values, i + 1, node.numKeys - i);
+            System.arraycopy(node.children, i + 1, node.children, i + 2, node.numKeys - i);
+            node.keys[i] = split.key;
+            node.values[i] = split.value;
+            node.children[i + 1] = split.right;
+            node.numKeys++;
+        }
+
+        if(node.numKeys <= node.getMaxKeys()) {
+            node.store();
+            return null;
+        }
+        return split(node);
+    }
+
+    /**
+     * Splits an overflowing node in half, and stores both halves.
+     */
+    private Split split(Node node) throws IOException {
+        int middle = node.numKeys / 2;
+        Node right = allocateNode(node.isLeaf);
+        Split split;
+        if(node.isLeaf) {
+            // leaves keep every entry, so the separator is a copy of the right half's first one
+            right.numKeys = node.numKeys - middle;
+            System.arraycopy(node.keys, middle, right.keys, 0, right.numKeys);
+            System.arraycopy(node.values, middle, right.values, 0, right.numKeys);
+            right.next = node.next;
+            node.next = right.location;
+            split = new Split(right.keys[0], right.values[0], right.location);
+        } else {
+            // inner nodes hand their middle separator up instead
+            right.numKeys = node.numKeys - middle - 1;
+            System.arraycopy(node.keys, middle + 1, right.keys, 0, right.numKeys);
+            System.arraycopy(node.values, middle + 1, right.values, 0, right.numKeys);
+            System.arraycopy(node.children, middle + 1, right.children, 0, right.numKeys + 1);
+            split = new Split(node.keys[middle], node.values[middle], right.location);
+        }
+        node.numKeys = middle;
+
+        right.store();
+        node.store();
+        return split;
+    }
+
+    @Override
+    public void delete(byte[] key, long value) throws IOException {
+        delete(decodeKey(key), value);
+    }
+
+    public synchronized void delete(long key, long value) throws IOException {
+        try {
+            Node node = fetchNode(rootLocation);
+            while(!node.isLeaf) {
+                node = fetchNode(node.getChild(node.findChild(key, value)));
+            }
+            int i = node.lowerBound(key, value);
+            if(i < node.numKeys && node.compareEntry(key, value, i) == 0) {
+                node.materialize();
+                System.arraycopy(node.keys, i + 1, node.keys, i, node.numKeys - i - 1);
+                System.arraycopy(node.values, i + 1, node.values, i, node.numKeys - i - 1);
+                node.numKeys--;
+                node.store();
+            }
+        } catch(IOException | DeserializationException e) {
+            upToDate = false;
+            throw e instanceof IOException ? (IOException) e : new IOException(e);
+        } finally {
+            unlockNodes();
+        }
+    }
+
+    /**
+     * Collects nodes in location order, and writes them out in big sequential batches.
+     */
+    private class BatchWriter {
+        private static final int BATCH_NODES = 64;
+
+        private final ByteBuffer batch = ByteBuffer.allocate(BATCH_NODES * NODE_SIZE);
+        private long firstLocation = 0;
+
+        public void write(Node node) throws IOException {
+            if(node.location - firstLocation == BATCH_NODES) {
+                batch.position(batch.capacity());
+                flush();
+            }
+            node.encode(encodeBuffer);
+            batch.position((int) (node.location - firstLocation) * NODE_SIZE);
+            batch.put(encodeBuffer);
+        }
+
+        public void flush() throws IOException {
+            batch.flip();
+            writeFully(channel, batch, getNodePosition(firstLocation));
+            batch.clear();
+            firstLocation += BATCH_NODES;
+        }
+    }
+
+    /**
+     * Fills an empty tree with entries that are already in order. The leaves are written first, in order, each linked to
+     * the one after it; then each level of inner nodes over the one below, until a level has only one node. Entries are
+     * spread evenly over each level, as close to the fill factor as they can be. Must be called with the lock held.
+     */
+    private void load(Iterator<Entry> entries, long count, double fillFactor) throws IOException {
+        if(count == 0) {
+            return;
+        }
+
+        nodeCount = 0;
+        BatchWriter writer = new BatchWriter();
+
+        // the first entry under each node on the level being built, and where the node is
+        int leafFill = Math.max(1, (int) (MAX_LEAF_KEYS * fillFactor));
+        int nodes = (int) ((count + leafFill - 1) / leafFill);
+        long[] firstKeys = new long[nodes];
+        long[] firstValues = new long[nodes];
+        long[] locations = new long[nodes];
+        for(int i = 0; i < nodes; i++) {
+            Node leaf = new Node(nodeCount++, true);
+            leaf.numKeys = (int) (count / nodes + (i < count % nodes ? 1 : 0));
+            for(int j = 0; j < leaf.numKeys; j++) {
+                Entry e = entries.next();
+                leaf.keys[j] = decodeKey(e.key);
+                leaf.values[j] = e.value;
+            }
+            // leaves are written one after another, so the next one is always the next location
+            leaf.next = i + 1 < nodes ? leaf.location + 1 : NO_NODE;
+            writer.write(leaf);
+            firstKeys[i] = leaf.keys[0];
+            firstValues[i] = leaf.values[0];
+            locations[i] = leaf.location;
+        }
+
+        int innerFill = Math.max(2, (int) (MAX_INNER_KEYS * fillFactor));
+        while(nodes > 1) {
+            int children = nodes;
+            nodes = (children + innerFill) / (innerFill + 1);
+            long[] parentKeys = new long[nodes];
+            long[] parentValues = new long[nodes];
+            long[] parentLocations = new long[nodes];
+            int child = 0;
+            for(int i = 0; i < nodes; i++) {
+                Node inner = new Node(nodeCount++, false);
+                int size = children / nodes + (i < children % nodes ? 1 : 0);
+                parentKeys[i] = firstKeys[child];
+                parentValues[i] = firstValues[child];
+                parentLocations[i] = inner.location;
+                inner.children[0] = locations[child++];
+                for(int j = 1; j < size; j++) {
+                    inner.keys[j - 1] = firstKeys[child];
+                    inner.values[j - 1] = firstValues[child];
+                    inner.children[j] = locations[child++];
+                }
+                inner.numKeys = size - 1;
+                writer.write(inner);
+            }
+            firstKeys = parentKeys;
+            firstValues = parentValues;
+            locations = parentLocations;
+        }
+        writer.flush();
+
+        // the pool still has copies of the empty tree
+        pool.invalidate(channel, 0);
+        setRootLocation(locations[0]);
+    }
+
+    /**
+     * Locks a node against readers until the write in progress is done. Every node a write changes stays locked until
+     * the end, so a reader can never see some of the write's changes without the others.
+     */
+    // must be called with the lock held
+    private void lockNode(long location) {
+        if(!lockedNodes.contains(location)) {
+            versions.lock(location);
+            lockedNodes.add(location);
+        }
+    }
+
+    // must be called with the lock held
+    private void unlockNodes() {
+        for(long location : lockedNodes) {
+            versions.unlock(location);
+        }
+        lockedNodes.clear();
+    }
+
+    // must be called with the lock held
+    private Node allocateNode(boolean isLeaf) {
+        return new Node(nodeCount++, isLeaf);
+    }
+
+    // must be called with the lock held
+    private void setRootLocation(long location) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(LOCATION_SIZE);
+        buffer.putLong(location);
+        buffer.flip();
+        pool.write(channel, ROOT_OFFSET, buffer);
+        rootLocation = location;
+    }
+
+    @Override
+    public synchronized long estimateCardinality() {
+        // nearly every node is a leaf. splits leave them half full and bulk loads pack them fuller, so guess in between.
+        return nodeCount * MAX_LEAF_KEYS * 3 / 4;
+    }
+
+    @Override
+    public boolean isUpToDate() {
+        return upToDate;
+    }
+
+    @Override
+    public synchronized void force() throws IOException {
+        channel.force(false);
+    }
+
+    /**
+     * Walks along the leaves, handing out the values of the entries with keys in a range. Before it trusts the leaf it
+     * is on, it checks the leaf's version; if a writer has changed it since, the scan searches again for whatever comes
+     * after the last entry it returned.
+     */
+    public class Scan implements PrimitiveIterator.OfLong {
+        private final long upper;
+        // where to search from if the leaf changes: just past the last entry returned
+        private long resumeKey;
+        private long resumeValue;
+
+        private Node leaf; // null if it has to be searched for again
+        private long leafVersion;
+        private int index;
+
+        private boolean ready = false; // whether nextKey and nextValue hold the next entry
+        private boolean done;
+        private long nextKey;
+        private long nextValue;
+        private long key;
+
+        private Scan(long lower, long upper) {
+            this.upper = upper;
+            this.resumeKey = lower;
+            this.resumeValue = Long.MIN_VALUE;
+            this.done = lower > upper;
+        }
+
+        // finds the next entry, if there is one
+        private void advance() throws DeserializationException, IOException {
+            while(!done) {
+                if(leaf == null) {
+                    Position p = search(resumeKey, resumeValue);
+                    leaf = p.leaf;
+                    leafVersion = p.version;
+                    index = p.index;
+                }
+                if(!versions.validate(leaf.location, leafVersion)) {
+                    leaf = null;
+                    continue;
+                }
+
+                if(index < leaf.numKeys) {
+                    long k = leaf.getKey(index);
+                    long v = leaf.getValue(index);
+                    index++;
+                    if(k > upper) {
+                        done = true;
+                        return;
+                    }
+                    nextKey = k;
+                    nextValue = v;
+                    ready = true;
+                    // entries are unique, so the one after this is the first that isn't less than (k, v + 1)
+                    if(v != Long.MAX_VALUE) {
+                        resumeValue = v + 1;
+                        resumeKey = k;
+                    } else if(k != Long.MAX_VALUE) {
+                        resumeValue = Long.MIN_VALUE;
+                        resumeKey = k + 1;
+                    } else {
+                        done = true;
+                    }
+                    return;
+                }
+
+                if(leaf.next == NO_NODE) {
+                    done = true;
+                    return;
+                }
+                long nextLocation = leaf.next;
+                long version = versions.awaitUnlocked(nextLocation);
+                Node next = versions.validate(leaf.location, leafVersion)
+                        ? fetchNodeOptimistically(nextLocation, version) : null;
+                if(next == null) {
+                    leaf = null;
+                    continue;
+                }
+                leaf = next;
+                leafVersion = version;
+                index = 0;
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            if(!ready) {
+                try {
+                    advance();
+                } catch(DeserializationException | IOException ex) {
+                    throw new RuntimeException(ex);
+                }
+            }
+            return ready;
+        }
+
+        /**
+         * @return The value of the next entry. Its key is then available from {@link #getKey()}.
+         */
+        @Override
+        public long nextLong() {
+            if(!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            ready = false;
+            key = nextKey;
+            return nextValue;
+        }
+
+        /**
+         * @return The key of the entry last returned by {@link #nextLong()}.
+         */
+        public long getKey() {
+            return key;
+        }
+    }
+}
@@ -0,0 +1,161 @@
+package com.collinswebsite.db;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Table storage that maps the file into memory in fixed-size segments, so that reads and writes are plain memory
+ * accesses served by the OS page cache.
+ *
+ * Only segments that lie entirely within the file are mapped; mapping past the end would grow the file, and the extra
+ * rows would read back as live rows full of zeroes. The unmapped tail at the end of the file is accessed with
+ * positional I/O, and whenever a write extends the file past a segment boundary the newly completed segments are
+ * mapped.
+ *
+ * Reads and writes hold a read lock for as long as they touch mapped segments, and truncating takes the write lock, so
+ * that a segment is never in use while the file shrinks underneath it.
+ */
+public class MappedTableStorage implements TableStorage {
+    public static final int DEFAULT_SEGMENT_SIZE = 256 * 1024;
+
+    private final FileChannel channel;
+    private final int segmentSize;
+    private final List<MappedByteBuffer> segments = new ArrayList<>();
+    private volatile long size;
+    // held shared while segments are being accessed, and exclusively while the file is truncated. always taken before
+    // this object's lock.
+    private final ReadWriteLock accessLock = new ReentrantReadWriteLock();
+
+    public MappedTableStorage(FileChannel channel) throws IOException {
+        this(channel, DEFAULT_SEGMENT_SIZE);
+    }
+
+    public MappedTableStorage(FileChannel channel, int segmentSize) throws IOException {
+        this.channel = channel;
+        this.segmentSize = segmentSize;
+        this.size = channel.size();
+        growMapping();
+    }
+
+    private synchronized long getMappedEnd() {
+        return (long) segments.size() * segmentSize;
+    }
+
+    private synchronized void growMapping() throws IOException {
+        while((long) (segments.size() + 1) * segmentSize <= size) {
+            segments.add(channel.map(FileChannel.MapMode.READ_WRITE, (long) segments.size() * segmentSize, segmentSize));
+        }
+    }
+
+    // returns a view of the mapped bytes starting at position, or null if position is not mapped
+    private synchronized ByteBuffer segmentAt(long position) {
+        int index = (int) (position / segmentSize);
+        if(index >= segments.size()) {
+            return null;
+        }
+        ByteBuffer view = segments.get(index).duplicate();
+        view.position((int) (position % segmentSize));
+        return view;
+    }
+
+    @Override
+    public int read(long position, ByteBuffer dst) throws IOException {
+        int total = 0;
+        accessLock.readLock().lock();
+        try {
+            while(dst.hasRemaining() && position < size) {
+                ByteBuffer segment = segmentAt(position);
+                int count;
+                if(segment != null) {
+                    count = (int) Math.min(Math.min(dst.remaining(), segment.remaining()), size - position);
+                    segment.limit(segment.position() + count);
+                    dst.put(segment);
+                } else {
+                    count = channel.read(dst, position);
+                    if(count <= 0) {
+                        break;
+                    }
+                }
+                total += count;
+                position += count;
+            }
+        } finally {
+            accessLock.readLock().unlock();
+        }
+        return total;
+    }
+
+    @Override
+    public int write(long position, ByteBuffer src) throws IOException {
+        int total = 0;
+        accessLock.readLock().lock();
+        try {
+            while(src.hasRemaining()) {
+                ByteBuffer segment = segmentAt(position);
+                int count;
+                if(segment != null) {
+                    count = Math.min(src.remaining(), segment.remaining());
+                    ByteBuffer slice = src.duplicate();
+                    slice.limit(slice.position() + count);
+                    segment.put(slice);
+                    src.position(src.position() + count);
+                } else {
+                    count = channel.write(src, position);
+                    if(count <= 0) {
+                        throw new EOFException();
+                    }
+                }
+                total += count;
+                position += count;
+            }
+
+            synchronized(this) {
+                if(position > size) {
+                    size = position;
+                    growMapping();
+                }
+            }
+        } finally {
+            accessLock.readLock().unlock();
+        }
+        return total;
+    }
+
+    @Override
+    public long size() {
+        return size;
+    }
+
+    @Override
+    public void truncate(long newSize) throws IOException {
+        // wait out anything still using the segments, then forget the ones that reach past the new end before the file
+        // shrinks underneath them
+        accessLock.writeLock().lock();
+        try {
+            synchronized(this) {
+                while(!segments.isEmpty() && getMappedEnd() > newSize) {
+                    segments.remove(segments.size() - 1);
+                }
+                channel.truncate(newSize);
+                size = newSize;
+            }
+        } finally {
+            accessLock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public synchronized void force() throws IOException {
+        for(MappedByteBuffer segment : segments) {
+            segment.force();
+        }
+        channel.force(false);
+    }
+}
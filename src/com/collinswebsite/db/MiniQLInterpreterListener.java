@@ -2,11 +2,13 @@ package com.collinswebsite.db;
 
 import com.collinswebsite.db.miniql.*;
 import org.antlr.v4.runtime.ParserRuleContext;
+import org.antlr.v4.runtime.Token;
 import org.antlr.v4.runtime.misc.ParseCancellationException;
 import org.antlr.v4.runtime.tree.ErrorNode;
 import org.antlr.v4.runtime.tree.TerminalNode;
 
-import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.function.BooleanSupplier;
 import java.util.stream.Collectors;
@@ -27,27 +29,81 @@ public class MiniQLInterpreterListener implements MiniQLListener {
             throw new ParseCancellationException("no such table: " + ctx.tableName().getText());
         }
 
-        Cursor cursor = table.createFullTableScanCursor();
+        Expression filter = ctx.whereFilter == null ? null : new ExpressionVisitor(table).visit(ctx.whereFilter);
+        List<Expression> order = ctx.orderList == null ? null : new ExpressionListVisitor(table).visit(ctx.orderList);
+        long limit = ctx.limit == null ? -1 : parseCount(ctx.limit);
+        long offset = ctx.offset == null ? 0 : parseCount(ctx.offset);
+        List<Expression> selected = ctx.selectList() == null
+                ? null : new SelectListVisitor(table).visit(ctx.selectList());
+        List<Column> groupBy = ctx.groupList == null
+                ? null : new ColumnListVisitor(table).visitColumnList(ctx.groupList);
+        boolean aggregating = groupBy != null
+                || (selected != null && selected.stream().anyMatch((e) -> e instanceof AggregateExpression));
+        if(aggregating && selected == null) {
+            throw new ParseCancellationException("can't select * with GROUP BY");
+        }
+        if(aggregating && order != null) {
+            throw new ParseCancellationException("can't use ORDER BY with aggregates");
+        }
 
-        List<Column> columns;
-        if(ctx.columnList() == null) {
-            columns = table.getColumns();
+        // rows that come out of an index scan are already in the order of its key
+        TableIndex orderIndex = order == null ? null : findOrderingIndex(table, order);
+        IndexScanCursor indexCursor = createIndexScanCursor(table, filter);
+        if(indexCursor == null && orderIndex != null) {
+            // walking the whole index hands out the first rows straight away, where sorting would have to read the
+            // whole table first
+            indexCursor = new IndexScanCursor(table, orderIndex, null, false, null, false);
+        }
+        boolean sorted = indexCursor != null && orderIndex != null
+                && indexCursor.getIndex().getColumn() == orderIndex.getColumn();
+
+        Cursor cursor;
+        if(indexCursor != null) {
+            cursor = new AsyncScanCursor(indexCursor, db.getIoExecutor());
+        } else if(shouldScanInParallel(table, filter != null) && (limit < 0 || order != null || aggregating)) {
+            // the order rows come out of the scan only matters if nothing is going to sort or group them afterwards. a
+            // limit on the rows themselves can stop early, which a parallel scan can't.
+            cursor = new ParallelScanCursor(table, db.getScanPool(), order == null && !aggregating);
         } else {
-            columns = new ColumnListVisitor(table).visitColumnList(ctx.columnList());
+            cursor = new AsyncScanCursor(table.createFullTableScanCursor(), db.getIoExecutor());
         }
 
-        if(ctx.whereFilter != null) {
+        if(filter != null) {
             try {
-                cursor.setFilter(new ExpressionVisitor(table).visit(ctx.whereFilter));
+                cursor.setFilter(filter);
             } catch(InvalidExpressionException e) {
                 throw new ParseCancellationException(e);
             }
         }
 
-        if(ctx.orderList != null) {
-            cursor = new SortingCursor(cursor, new ExpressionListVisitor(table).visit(ctx.orderList));
+        if(order != null && !sorted) {
+            // with a limit, only the first rows need to be kept
+            cursor = new SortingCursor(cursor, order, SortingCursor.DEFAULT_MEMORY_BUDGET,
+                    limit < 0 ? -1 : limit + offset, db.getIoExecutor());
         }
 
+        List<Column> columns;
+        if(aggregating) {
+            try {
+                AggregatingCursor aggregator = new AggregatingCursor(cursor,
+                        groupBy == null ? Collections.emptyList() : groupBy, selected);
+                cursor = aggregator;
+                columns = aggregator.getColumns();
+            } catch(InvalidExpressionException e) {
+                throw new ParseCancellationException(e.getMessage());
+            }
+        } else if(selected == null) {
+            columns = table.getColumns();
+        } else {
+            columns = selected.stream().map((e) -> ((ColumnExpression) e).getColumn()).collect(Collectors.toList());
+        }
+
+        if(limit >= 0 || offset > 0) {
+            cursor = new LimitCursor(cursor, limit < 0 ? Long.MAX_VALUE : limit, offset);
+        }
+
+        cursor.setProjection(columns);
+
         socketConnectionState.key.attach((BooleanSupplier) new SocketConnectionResponseWriter(
                 socketConnectionState,
                 cursor,
@@ -62,16 +118,126 @@ public class MiniQLInterpreterListener implements MiniQLListener {
         }
 
         ExpressionVisitor v = new ExpressionVisitor(table);
-        List<Object> objects = ctx.literal().stream().map((l) -> v.visitLiteral(l).evaluate(null)).collect(Collectors.toList());
-        Row r = null;
+        List<List<Object>> rowValues = new ArrayList<>();
+        for(MiniQLParser.ValueListContext vl : ctx.valueList()) {
+            List<Object> values = new ArrayList<>();
+            for(int i = 0; i < vl.literal().size(); i++) {
+                Expression literal = v.visitLiteral(vl.literal(i));
+                if(i < table.getColumns().size()) {
+                    Column column = table.getColumns().get(i);
+                    if(!column.getType().isComparable(literal.getType())) {
+                        throw new ParseCancellationException("can't insert " + literal.getType().getName()
+                                + " into column '" + column.getName() + "'");
+                    }
+                }
+                values.add(literal.evaluate(null));
+            }
+            rowValues.add(values);
+        }
+
+        // inserting waits for the commit, which can mean an fsync. that runs on the I/O executor so that other
+        // connections carry on, and so that concurrent inserts can share one fsync. this connection doesn't read its
+        // next request until it's done.
+        socketConnectionState.key.interestOps(0);
+        db.getIoExecutor().execute(() -> {
+            String message;
+            try {
+                List<Row> rows = table.insertRows(rowValues);
+                message = rows.size() == 1 ?
+                        "inserted at id " + rows.get(0).getId() :
+                        "inserted " + rows.size() + " rows at ids " + rows.get(0).getId() + "-"
+                                + rows.get(rows.size() - 1).getId();
+            } catch(Throwable t) {
+                // whatever went wrong, the connection is waiting on a reply
+                t.printStackTrace();
+                message = "ERROR: " + t.toString();
+            }
+
+            if(socketConnectionState.key.isValid()) {
+                socketConnectionState.key.attach((BooleanSupplier) new SocketConnectionErrorWriter(
+                        socketConnectionState,
+                        message)::process);
+                socketConnectionState.key.selector().wakeup();
+            }
+        });
+    }
+
+    /**
+     * Plans a scan of one of the table's indices, if the filter compares an indexed column with a literal.
+     * @return The cursor, or null if no index can help.
+     */
+    private IndexScanCursor createIndexScanCursor(Table table, Expression filter) {
+        if(!(filter instanceof ComparisonExpression)) {
+            return null;
+        }
+        ComparisonExpression comparison = (ComparisonExpression) filter;
+
+        ComparisonExpression.Operator op = comparison.getOperator();
+        Expression columnSide = comparison.getLeft();
+        Expression literalSide = comparison.getRight();
+        if(!(columnSide instanceof ColumnExpression)) {
+            columnSide = comparison.getRight();
+            literalSide = comparison.getLeft();
+            op = op.mirror();
+        }
+        if(!(columnSide instanceof ColumnExpression)
+                || !(literalSide instanceof StringLiteral || literalSide instanceof IntegerLiteral)) {
+            return null;
+        }
+        TableIndex index = findIndex(table, ((ColumnExpression) columnSide).getColumn());
+        if(index == null) {
+            return null;
+        }
+
+        byte[] key = TableIndex.encodeKey(literalSide.evaluate(null));
+        switch(op) {
+            case EQUAL:
+                return new IndexScanCursor(table, index, key, true, key, true);
+            case LESS_THAN:
+                return new IndexScanCursor(table, index, null, false, key, false);
+            case GREATER_THAN:
+                return new IndexScanCursor(table, index, key, false, null, false);
+        }
+        return null; // != matches nearly every row, so the index wouldn't save anything
+    }
+
+    /**
+     * @return An index whose key order is the order these expressions sort rows in, or null if there isn't one.
+     */
+    private TableIndex findOrderingIndex(Table table, List<Expression> order) {
+        // keys are single columns, so a single column is the only prefix of one
+        if(order.size() != 1 || !(order.get(0) instanceof ColumnExpression)) {
+            return null;
+        }
+        return findIndex(table, ((ColumnExpression) order.get(0)).getColumn());
+    }
+
+    /**
+     * @return An index of the column that can be used to answer queries, or null if there isn't one.
+     */
+    private TableIndex findIndex(Table table, Column column) {
+        return table.getIndexes().stream()
+                .filter((i) -> i.getColumn() == column && i.isUpToDate())
+                .findFirst().orElse(null);
+    }
+
+    private long parseCount(Token token) {
         try {
-            r = table.insertRow(objects);
-        } catch(IOException | SerializationException e) {
-            throw new ParseCancellationException(e);
+            long count = Long.parseLong(token.getText());
+            if(count >= 0) {
+                return count;
+            }
+        } catch(NumberFormatException e) {
+            // fall through
         }
-        socketConnectionState.key.attach((BooleanSupplier) new SocketConnectionErrorWriter(
-                socketConnectionState,
-                "inserted at id " + r.getId())::process);
+        throw new ParseCancellationException("invalid row count: " + token.getText());
+    }
+
+    /**
+     * Big filtered scans are worth splitting up. Unfiltered ones would just end up holding the whole table in memory.
+     */
+    private boolean shouldScanInParallel(Table table, boolean filtered) {
+        return filtered && table.getCapacity() > ParallelScanCursor.LEAF_ROWS;
     }
 
     @Override
@@ -81,30 +247,62 @@ public class MiniQLInterpreterListener implements MiniQLListener {
             throw new ParseCancellationException("no such table: " + ctx.tableName().getText());
         }
 
-        Cursor cursor = table.createFullTableScanCursor();
+        Expression filter = ctx.whereFilter == null ? null : new ExpressionVisitor(table).visit(ctx.whereFilter);
 
-        if(ctx.whereFilter != null) {
+        // this cursor is read from an I/O thread, so it must not need one of its own
+        Cursor indexCursor = createIndexScanCursor(table, filter);
+        Cursor cursor;
+        if(indexCursor != null) {
+            cursor = indexCursor;
+        } else if(shouldScanInParallel(table, filter != null)) {
+            cursor = new ParallelScanCursor(table, db.getScanPool(), false);
+        } else {
+            cursor = table.createFullTableScanCursor();
+        }
+
+        if(filter != null) {
             try {
-                cursor.setFilter(new ExpressionVisitor(table).visit(ctx.whereFilter));
+                cursor.setFilter(filter);
             } catch(InvalidExpressionException e) {
                 throw new ParseCancellationException(e);
             }
         }
 
-        int count = 0;
-        try {
-            Row r;
-            while((r = cursor.getNext()) != null) {
-                r.delete();
-                count++;
+        // deleting only needs row IDs
+        cursor.setProjection(Collections.emptyList());
+
+        // the scan runs on the I/O executor so that it doesn't hold up other connections. this connection doesn't
+        // read its next request until it's done.
+        socketConnectionState.key.interestOps(0);
+        db.getIoExecutor().execute(() -> {
+            String message;
+            try {
+                // find every row before deleting any. deleting rows takes their entries out of the indices, and an index
+                // scan could skip entries that move while it's running.
+                List<Integer> ids = new ArrayList<>();
+                while(!cursor.isAtEnd()) {
+                    Row r = cursor.getNext();
+                    if(r == null) {
+                        cursor.await().toCompletableFuture().join(); // we're on an I/O thread, so blocking is fine
+                        continue;
+                    }
+                    ids.add(r.getId());
+                }
+                // one log record and one commit for all of them
+                message = "deleted " + table.deleteRows(ids) + " rows";
+            } catch(Throwable t) {
+                // whatever went wrong, the connection is waiting on a reply
+                t.printStackTrace();
+                message = "ERROR: " + t.toString();
             }
-        } catch(DeserializationException | IOException e) {
-            throw new ParseCancellationException(e);
-        }
 
-        socketConnectionState.key.attach((BooleanSupplier) new SocketConnectionErrorWriter(
-                socketConnectionState,
-                "deleted " + count + " rows")::process);
+            if(socketConnectionState.key.isValid()) {
+                socketConnectionState.key.attach((BooleanSupplier) new SocketConnectionErrorWriter(
+                        socketConnectionState,
+                        message)::process);
+                socketConnectionState.key.selector().wakeup();
+            }
+        });
     }
 
     // stubs...
@@ -144,6 +342,46 @@ public class MiniQLInterpreterListener implements MiniQLListener {
 
     }
 
+    @Override
+    public void enterSelectList(MiniQLParser.SelectListContext ctx) {
+
+    }
+
+    @Override
+    public void exitSelectList(MiniQLParser.SelectListContext ctx) {
+
+    }
+
+    @Override
+    public void enterColumnItem(MiniQLParser.ColumnItemContext ctx) {
+
+    }
+
+    @Override
+    public void exitColumnItem(MiniQLParser.ColumnItemContext ctx) {
+
+    }
+
+    @Override
+    public void enterAggregateItem(MiniQLParser.AggregateItemContext ctx) {
+
+    }
+
+    @Override
+    public void exitAggregateItem(MiniQLParser.AggregateItemContext ctx) {
+
+    }
+
+    @Override
+    public void enterAggregateFunction(MiniQLParser.AggregateFunctionContext ctx) {
+
+    }
+
+    @Override
+    public void exitAggregateFunction(MiniQLParser.AggregateFunctionContext ctx) {
+
+    }
+
     @Override
     public void enterColumnName(MiniQLParser.ColumnNameContext ctx) {
 
@@ -164,6 +402,16 @@ public class MiniQLInterpreterListener implements MiniQLListener {
 
     }
 
+    @Override
+    public void enterValueList(MiniQLParser.ValueListContext ctx) {
+
+    }
+
+    @Override
+    public void exitValueList(MiniQLParser.ValueListContext ctx) {
+
+    }
+
     @Override
     public void enterExpressionList(MiniQLParser.ExpressionListContext ctx) {
 
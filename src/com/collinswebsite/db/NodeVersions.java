@@ -0,0 +1,73 @@
+package com.collinswebsite.db;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Version counters for optimistic lock coupling in an index, one per node location. A node's counter is odd while a
+ * writer has it locked, and goes up by two every time the node changes. A reader that sees the same even version before
+ * and after reading a node knows that what it read is consistent.
+ */
+public class NodeVersions {
+    private static final int SEGMENT_SIZE = 1024;
+
+    // segments are never replaced, only added to, so a reader holding an old array still sees current counters
+    private volatile AtomicLongArray[] segments = new AtomicLongArray[0];
+
+    private AtomicLongArray getSegment(long location) {
+        int index = (int) (location / SEGMENT_SIZE);
+        AtomicLongArray[] current = segments;
+        if(index < current.length) {
+            return current[index];
+        }
+        synchronized(this) {
+            current = segments;
+            if(index >= current.length) {
+                AtomicLongArray[] grown = Arrays.copyOf(current, index + 1);
+                for(int i = current.length; i < grown.length; i++) {
+                    grown[i] = new AtomicLongArray(SEGMENT_SIZE);
+                }
+                segments = grown;
+                current = grown;
+            }
+            return current[index];
+        }
+    }
+
+    /**
+     * @return The node's version, once no writer has it locked.
+     */
+    public long awaitUnlocked(long location) {
+        AtomicLongArray segment = getSegment(location);
+        int i = (int) (location % SEGMENT_SIZE);
+        while(true) {
+            long version = segment.get(i);
+            if((version & 1) == 0) {
+                return version;
+            }
+            Thread.onSpinWait();
+        }
+    }
+
+    /**
+     * @return true if the node hasn't changed, and isn't being changed, since its version was read.
+     */
+    public boolean validate(long location, long version) {
+        return getSegment(location).get((int) (location % SEGMENT_SIZE)) == version;
+    }
+
+    /**
+     * Makes a node's version odd. Nothing here stops two writers locking the same node; callers have to make sure of that
+     * themselves, for example by taking a lock of their own first.
+     */
+    public void lock(long location) {
+        getSegment(location).incrementAndGet((int) (location % SEGMENT_SIZE));
+    }
+
+    /**
+     * Makes a locked node's version even again, and different from any it had before.
+     */
+    public void unlock(long location) {
+        getSegment(location).incrementAndGet((int) (location % SEGMENT_SIZE));
+    }
+}
@@ -0,0 +1,207 @@
+package com.collinswebsite.db;
+
+import com.collinswebsite.db.miniql.Expression;
+import com.collinswebsite.db.miniql.InvalidExpressionException;
+import com.collinswebsite.db.types.BooleanDataType;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Scans a whole table on a fork/join pool. The row ID range is split in half recursively down to ranges of
+ * {@link #LEAF_ROWS} rows, and each of those is read and filtered by its own {@link FullScanCursor}.
+ *
+ * In ordered mode, rows come out in ID order, and each range is handed out as soon as every range before it is done.
+ * Otherwise, ranges are handed out in whatever order they finish. Either way, this cursor never blocks; see
+ * {@link Cursor#await()}.
+ *
+ * Every matching row is held in memory until it is read out, so this is meant for filtered scans.
+ */
+public class ParallelScanCursor implements Cursor {
+    public static final int LEAF_ROWS = 4096;
+
+    private final Table table;
+    private final ForkJoinPool pool;
+    private final boolean ordered;
+    private Expression filter;
+    private Collection<Column> projection;
+
+    // guarded by this
+    private boolean started = false;
+    private int endId; // the table's capacity when the scan started; rows appended after that are not part of it
+    private List<List<Row>> finished; // ordered mode only; indexed by leaf, null until that leaf is done
+    private int nextLeaf = 0; // ordered mode only; the next leaf whose rows will be handed out
+    private int pendingLeaves;
+    private final ArrayDeque<Row> ready = new ArrayDeque<>();
+    private Throwable error;
+    private CompletableFuture<Void> waiter;
+
+    public ParallelScanCursor(Table table, ForkJoinPool pool, boolean ordered) {
+        this.table = table;
+        this.pool = pool;
+        this.ordered = ordered;
+    }
+
+    private class ScanTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final int firstLeaf;
+        private final int endLeaf;
+
+        private ScanTask(int firstLeaf, int endLeaf) {
+            this.firstLeaf = firstLeaf;
+            this.endLeaf = endLeaf;
+        }
+
+        @Override
+        protected void compute() {
+            if(endLeaf - firstLeaf > 1) {
+                int middle = (firstLeaf + endLeaf) >>> 1;
+                invokeAll(new ScanTask(firstLeaf, middle), new ScanTask(middle, endLeaf));
+                return;
+            }
+
+            int firstId = Table.FIRST_ROW_ID + firstLeaf * LEAF_ROWS;
+            List<Row> rows = new ArrayList<>();
+            try {
+                FullScanCursor cursor = new FullScanCursor(table, firstId, Math.min(firstId + LEAF_ROWS, endId));
+                if(filter != null) {
+                    cursor.setFilter(filter);
+                }
+                if(projection != null) {
+                    cursor.setProjection(projection);
+                }
+                while(!cursor.isAtEnd()) {
+                    Row r = cursor.getNext();
+                    if(r != null) {
+                        rows.add(r);
+                    }
+                }
+            } catch(Throwable t) {
+                fail(t);
+                return;
+            }
+            finish(firstLeaf, rows);
+        }
+    }
+
+    // must be called with the lock held
+    private void start() {
+        if(started) {
+            return;
+        }
+        started = true;
+
+        endId = table.getCapacity();
+        int leaves = Math.max(0, (endId - Table.FIRST_ROW_ID + LEAF_ROWS - 1) / LEAF_ROWS);
+        pendingLeaves = leaves;
+        if(ordered) {
+            finished = new ArrayList<>(leaves);
+            for(int i = 0; i < leaves; i++) {
+                finished.add(null);
+            }
+        }
+        if(leaves > 0) {
+            pool.execute(new ScanTask(0, leaves));
+        }
+    }
+
+    private void finish(int leaf, List<Row> rows) {
+        CompletableFuture<Void> w = null;
+        synchronized(this) {
+            pendingLeaves--;
+            if(ordered) {
+                finished.set(leaf, rows);
+                while(nextLeaf < finished.size() && finished.get(nextLeaf) != null) {
+                    ready.addAll(finished.get(nextLeaf));
+                    finished.set(nextLeaf++, null);
+                }
+            } else {
+                ready.addAll(rows);
+            }
+            if(!ready.isEmpty() || pendingLeaves == 0) {
+                w = waiter;
+                waiter = null;
+            }
+        }
+        if(w != null) {
+            w.complete(null);
+        }
+    }
+
+    private void fail(Throwable t) {
+        CompletableFuture<Void> w;
+        synchronized(this) {
+            if(error == null) {
+                error = t;
+            }
+            w = waiter;
+            waiter = null;
+        }
+        if(w != null) {
+            w.complete(null);
+        }
+    }
+
+    // must be called with the lock held
+    private void checkError() throws DeserializationException {
+        if(error == null) {
+            return;
+        }
+        if(error instanceof DeserializationException) {
+            throw (DeserializationException) error;
+        }
+        throw new IllegalStateException("parallel scan failed", error);
+    }
+
+    @Override
+    public synchronized boolean isAtEnd() throws DeserializationException {
+        start();
+        checkError();
+        return ready.isEmpty() && pendingLeaves == 0;
+    }
+
+    @Override
+    public synchronized Row getNext() throws DeserializationException {
+        start();
+        checkError();
+        return ready.poll();
+    }
+
+    @Override
+    public Table getTable() {
+        return table;
+    }
+
+    @Override
+    public synchronized CompletionStage<Void> await() {
+        start();
+        if(!ready.isEmpty() || pendingLeaves == 0 || error != null) {
+            return CompletableFuture.completedFuture(null);
+        }
+        if(waiter == null) {
+            waiter = new CompletableFuture<>();
+        }
+        return waiter;
+    }
+
+    @Override
+    public synchronized void setFilter(Expression filter) throws InvalidExpressionException {
+        filter.validate();
+        if(!(filter.getType() instanceof BooleanDataType)) {
+            throw new InvalidExpressionException("expected boolean expression");
+        }
+        this.filter = filter;
+    }
+
+    @Override
+    public synchronized void setProjection(Collection<Column> columns) {
+        this.projection = columns;
+    }
+}
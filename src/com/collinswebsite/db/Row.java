@@ -1,36 +1,142 @@
 package com.collinswebsite.db;
 
+import com.collinswebsite.db.miniql.SerializedPredicate;
+
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.List;
 
+/**
+ * A view over the serialized image of a row. Columns are only decoded when they are asked for.
+ *
+ * A row may hold only part of its image, when a scan has been told that only some columns will be read. Reading a
+ * column outside that part is an error.
+ */
 public class Row {
     private final Table table;
     private final int id;
-    private final List<Object> values;
+    private final ByteBuffer data; // the row image, free link included. never modified.
+    private final int dataOffset; // offset within the row image at which data starts
+    private final int columnCount;
+    private Object[] values; // decoded columns, filled in lazily
+
+    public Row(Table table, int id, ByteBuffer data) {
+        this(table, id, data, 0);
+    }
 
-    public Row(Table table, int id, List<Object> values) {
+    /**
+     * Creates a row that only holds part of its image.
+     * @param dataOffset Where, within the whole row image, the data starts.
+     */
+    public Row(Table table, int id, ByteBuffer data, int dataOffset) {
         this.table = table;
         this.id = id;
-        this.values = values;
+        this.data = data;
+        this.dataOffset = dataOffset;
+        this.columnCount = table.getColumns().size();
     }
 
+    /**
+     * Creates a row laid out over columns of its own rather than its table's, such as a row of computed results.
+     */
+    public Row(Table table, List<Column> columns, ByteBuffer data) {
+        this.table = table;
+        this.id = 0;
+        this.data = data;
+        this.dataOffset = 0;
+        this.columnCount = columns.size();
+    }
+
+    private int locate(Column column) {
+        int offset = column.getOffset() - dataOffset;
+        if(offset < 0 || offset + column.getType().getSize() > data.limit()) {
+            throw new IllegalStateException("column '" + column.getName() + "' was not projected");
+        }
+        return offset;
+    }
+
+    /**
+     * Runs a filter compiled for serialized rows against this one. Every column it reads must be held.
+     */
+    public boolean matches(SerializedPredicate predicate) {
+        return predicate.test(data, -dataOffset);
+    }
+
+    /**
+     * Copies the serialized column values of this row into a buffer.
+     */
     public void serialize(ByteBuffer buffer) throws SerializationException {
-        List<Column> columns = table.getColumns();
-        for(int i = 0; i < columns.size(); i++) {
-            columns.get(i).getType().serialize(buffer, values.get(i));
+        if(dataOffset != 0 || data.limit() != table.getRowSize()) {
+            throw new IllegalStateException("can't serialize a partial row");
         }
+        ByteBuffer src = data.duplicate();
+        src.position(Table.FREE_LINK_FIELD_SIZE);
+        src.limit(table.getRowSize());
+        buffer.put(src);
     }
 
     public Object getValueForColumn(Column column) {
-        return values.get(column.getPosition());
+        if(values == null) {
+            values = new Object[columnCount];
+        }
+        Object value = values[column.getPosition()];
+        if(value == null) {
+            value = column.getType().deserialize(data, locate(column));
+            values[column.getPosition()] = value;
+        }
+        return value;
+    }
+
+    /**
+     * Reads an integer column without boxing it.
+     */
+    public long getLongForColumn(Column column) {
+        return data.getLong(locate(column));
+    }
+
+    /**
+     * @return The serialized values of some columns, one after another.
+     */
+    public byte[] serializeColumns(List<Column> columns) {
+        int size = 0;
+        for(Column c : columns) {
+            size += c.getType().getSize();
+        }
+        byte[] values = new byte[size];
+        int position = 0;
+        for(Column c : columns) {
+            ByteBuffer src = data.duplicate();
+            src.position(locate(c));
+            src.get(values, position, c.getType().getSize());
+            position += c.getType().getSize();
+        }
+        return values;
+    }
+
+    /**
+     * @return A read-only view of the serialized row, free link included. For a partial row, this is only the part it
+     *         holds.
+     */
+    public ByteBuffer getData() {
+        return data.asReadOnlyBuffer();
     }
 
     public void delete() throws IOException {
         table.deleteRow(id);
     }
 
+    /**
+     * @return Where, within the whole row image, the data this row holds starts.
+     */
+    public int getDataOffset() {
+        return dataOffset;
+    }
+
     public int getId() {
         return id;
     }
+
+    public Table getTable() {
+        return table;
+    }
 }
@@ -9,11 +9,18 @@ public class SocketConnectionResponseWriter {
     private final Cursor cursor;
     private final List<Column> columns;
     private final SocketConnectionState state;
+    private final int lineSize; // the most a row can take up once written out
 
     public SocketConnectionResponseWriter(SocketConnectionState state, Cursor cursor, List<Column> columns) {
         this.state = state;
         this.cursor = cursor;
         this.columns = columns;
+        // numbers can be longer written out than serialized; strings can't
+        int size = 1;
+        for(Column c : columns) {
+            size += Math.max(c.getType().getSize(), 24) + 1;
+        }
+        this.lineSize = size;
 
         // adjust our interest
         state.key.interestOps(SelectionKey.OP_WRITE);
@@ -25,7 +32,7 @@ public class SocketConnectionResponseWriter {
     public boolean process() {
         boolean ranOut = false;
         try {
-            while(!cursor.isAtEnd() && state.buffer.remaining() >= cursor.getTable().getRowSize()) {
+            while(!cursor.isAtEnd() && state.buffer.remaining() >= lineSize) {
                 Row r = cursor.getNext();
                 if(r == null) {
                     // we have run out of rows
@@ -44,24 +51,34 @@ public class SocketConnectionResponseWriter {
                 try {
                     state.channel.write(state.buffer);
                 } catch(IOException e) {
+                    cursor.close();
                     state.enterErrorState(e);
                     return true;
                 }
-            } else {
-                if(ranOut && !cursor.isAtEnd()) {
-                    // cursor needs to fetch more rows...
-                    state.key.interestOps(0); // we're not interested in being able to write anymore
-
-                    cursor.await().thenRun(() -> {
-                        state.key.interestOps(SelectionKey.OP_WRITE); // we are now interested in writing again.
-                    });
-                }
             }
+            boolean drained = state.buffer.remaining() == 0;
+            state.buffer.compact(); // keep whatever the socket didn't take for next time
 
-            if(cursor.isAtEnd()) {
+            if(drained && cursor.isAtEnd()) {
+                cursor.close();
                 state.key.attach((BooleanSupplier) new SocketConnectionReader(state)::process);
+            } else if(drained && ranOut) {
+                // cursor needs to fetch more rows...
+                state.key.interestOps(0); // we're not interested in being able to write anymore
+
+                cursor.await().whenComplete((v, t) -> {
+                    // this probably runs on an I/O thread, so the selector needs a nudge to notice. if the fetch
+                    // failed, the cursor will throw when we next read from it.
+                    if(state.key.isValid()) {
+                        state.key.interestOps(SelectionKey.OP_WRITE); // we are now interested in writing again.
+                        state.key.selector().wakeup();
+                    } else {
+                        cursor.close(); // nobody is left to read the rest
+                    }
+                });
             }
         } catch(Throwable throwable) {
+            cursor.close();
             state.enterErrorState(throwable);
             return true;
         }
@@ -5,36 +5,212 @@ import com.collinswebsite.db.miniql.InvalidExpressionException;
 import com.collinswebsite.db.types.IntegerDataType;
 import com.collinswebsite.db.types.StringDataType;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executor;
 
+/**
+ * Sorts the rows of another cursor.
+ *
+ * As each row arrives, the values it sorts by are evaluated once and encoded into a single key that orders rows the
+ * same way when compared bytewise, unsigned. The rows are radix sorted on the first eight bytes of their keys, held in a
+ * long, and only rows that tie on those are compared by whole key. The rows themselves aren't looked at again until
+ * they are handed out.
+ *
+ * Rows are collected in memory until they pass the memory budget. Then they are sorted and written out to a temporary
+ * file as a run, and the sorted result is a merge of all the runs, handed out as it is merged. Each run is deleted once
+ * the merge has read all of it, and whatever runs are left are deleted if the sort fails or the cursor is closed. If
+ * every row fits in the budget, nothing is written out and they are simply sorted.
+ *
+ * Collecting, sorting and merging all happen on an I/O executor, one task at a time, like {@link AsyncScanCursor}.
+ * Sorted rows are queued up here in batches; when the queue is empty, {@link #getNext()} returns null instead of
+ * blocking, and {@link #await()} completes once more rows are ready.
+ *
+ * If only the first few rows are wanted, they are picked out with a heap holding just that many, so that the rest are
+ * let go as they arrive instead of being sorted. Should those few not fit in the budget after all, it falls back on the
+ * usual sort.
+ */
 public class SortingCursor implements Cursor {
+    public static final long DEFAULT_MEMORY_BUDGET = 64 * 1024 * 1024;
+    // a rough guess at what a row and its sort key cost on the heap, on top of the image and the key's bytes
+    private static final int ROW_OVERHEAD = 160;
+    private static final int STREAM_BUFFER_SIZE = 64 * 1024;
+    private static final int BATCH_SIZE = 256;
+
     private final Cursor base;
     private final List<Expression> fields;
+    private final long memoryBudget;
+    private final long limit;
+    private final Executor executor;
+
+    // guarded by this
+    private final ArrayDeque<Row> ready = new ArrayDeque<>();
+    private boolean working = false; // whether a task is running, or waiting on the base cursor to run next
+    private boolean done = false; // every sorted row has been queued
+    private boolean closed = false;
+    private Throwable error;
+    private CompletableFuture<Void> waiter;
+
+    // the rest is only touched by whichever task is running
+    private byte[] keyBuffer = new byte[64]; // where keys are encoded before being copied out
+
+    private List<SortEntry> input = new ArrayList<>();
+    private long bufferedBytes = 0;
+    private final List<Path> runs = new ArrayList<>();
+    private final List<Long> runLengths = new ArrayList<>();
+    private long sequence = 0; // how many rows have arrived
+    private PriorityQueue<SortEntry> top; // the smallest rows so far, largest on top, if only the first few are wanted
 
-    private List<Row> sortedRows;
+    // once the base cursor has run out, the rows come from one of these
+    private boolean sorted = false;
+    private List<SortEntry> sortedRows; // if nothing was spilled
     private int readHead = 0;
+    private PriorityQueue<RunReader> heads; // if it was
+    private final List<RunReader> readers = new ArrayList<>(); // every run opened for the merge
+    private long merged = 0; // how many rows have been taken from the runs
+
+    public SortingCursor(Cursor base, List<Expression> fields, Executor executor) {
+        this(base, fields, DEFAULT_MEMORY_BUDGET, executor);
+    }
+
+    /**
+     * @param memoryBudget Roughly how many bytes of rows to hold in memory before spilling them to disk.
+     */
+    public SortingCursor(Cursor base, List<Expression> fields, long memoryBudget, Executor executor) {
+        this(base, fields, memoryBudget, -1, executor);
+    }
 
-    public SortingCursor(Cursor base, List<Expression> fields) {
+    /**
+     * @param memoryBudget Roughly how many bytes of rows to hold in memory before spilling them to disk.
+     * @param limit How many of the first rows are wanted, or -1 for all of them.
+     */
+    public SortingCursor(Cursor base, List<Expression> fields, long memoryBudget, long limit, Executor executor) {
         this.base = base;
         this.fields = fields;
+        this.memoryBudget = memoryBudget;
+        this.limit = limit;
+        this.executor = executor;
+        if(limit >= 0) {
+            // largest first; of equal rows the later one is larger, since it's the one to drop
+            top = new PriorityQueue<>(Collections.reverseOrder(
+                    Comparator.<SortEntry>naturalOrder().thenComparingLong(e -> e.sequence)));
+        }
+    }
+
+    /**
+     * A row along with its sort key.
+     */
+    private static class SortEntry implements Comparable<SortEntry> {
+        public final long prefix; // the first eight bytes of the key, padded with zeros
+        public final byte[] key;
+        public final Row row;
+        public final long sequence; // where the row arrived, for the top few only
+
+        public SortEntry(byte[] key, Row row) {
+            this(key, row, 0);
+        }
+
+        public SortEntry(byte[] key, Row row, long sequence) {
+            long p = 0;
+            for(int i = 0; i < 8; i++) {
+                p = (p << 8) | (i < key.length ? key[i] & 0xFF : 0);
+            }
+            this.prefix = p;
+            this.key = key;
+            this.row = row;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public int compareTo(SortEntry other) {
+            int r = Long.compareUnsigned(prefix, other.prefix);
+            if(r != 0) {
+                return r;
+            }
+            return Arrays.compareUnsigned(key, other.key);
+        }
+    }
+
+    /**
+     * Encodes the values a row sorts by, one field after another. Integers are big-endian with the sign bit flipped.
+     * Strings are their UTF-16 code units, big-endian, ended by two zero bytes; the code units 0 and 1 are written as
+     * [0, 1, unit] so that the end always sorts first. Every field's encoding is in order and never a prefix of another
+     * one, so comparing whole keys compares the fields in turn.
+     */
+    private byte[] encodeSortKey(Row r) {
+        int length = 0;
+        for(Expression e : fields) {
+            if(e.getType() instanceof IntegerDataType) {
+                ensureKeyCapacity(length + 8);
+                long v = e.evaluateAsInteger(r) ^ Long.MIN_VALUE;
+                for(int i = 7; i >= 0; i--) {
+                    keyBuffer[length++] = (byte) (v >>> (i * 8));
+                }
+            } else if(e.getType() instanceof StringDataType) {
+                String s = (String) e.evaluate(r);
+                ensureKeyCapacity(length + s.length() * 3 + 2);
+                for(int i = 0; i < s.length(); i++) {
+                    char c = s.charAt(i);
+                    if(c <= 1) {
+                        keyBuffer[length++] = 0;
+                        keyBuffer[length++] = 1;
+                        keyBuffer[length++] = (byte) c;
+                    } else {
+                        keyBuffer[length++] = (byte) (c >>> 8);
+                        keyBuffer[length++] = (byte) c;
+                    }
+                }
+                keyBuffer[length++] = 0;
+                keyBuffer[length++] = 0;
+            }
+            // nothing else has an order
+        }
+        return Arrays.copyOf(keyBuffer, length);
+    }
+
+    private void ensureKeyCapacity(int capacity) {
+        if(keyBuffer.length < capacity) {
+            keyBuffer = Arrays.copyOf(keyBuffer, Math.max(capacity, keyBuffer.length * 2));
+        }
     }
 
     @Override
-    public boolean isAtEnd() throws DeserializationException {
-        if(sortedRows == null) {
-            sort();
+    public synchronized boolean isAtEnd() throws DeserializationException {
+        checkError();
+        if(!ready.isEmpty()) {
+            return false;
+        }
+        if(done) {
+            return true;
         }
-        return readHead >= sortedRows.size();
+        startWork();
+        return false;
     }
 
     @Override
-    public Row getNext() throws DeserializationException {
-        if(sortedRows == null) {
-            sort();
+    public synchronized Row getNext() throws DeserializationException {
+        checkError();
+        Row r = ready.poll();
+        if(ready.size() < BATCH_SIZE) {
+            startWork();
         }
-        return sortedRows.get(readHead++);
+        return r;
     }
 
     @Override
@@ -43,8 +219,35 @@ public class SortingCursor implements Cursor {
     }
 
     @Override
-    public CompletionStage<Void> await() {
-        return null;
+    public synchronized CompletionStage<Void> await() {
+        if(!ready.isEmpty() || done || error != null || closed) {
+            return CompletableFuture.completedFuture(null);
+        }
+        if(waiter == null) {
+            waiter = new CompletableFuture<>();
+        }
+        startWork();
+        return waiter;
+    }
+
+    /**
+     * Stops sorting, and deletes whatever runs are left once the task that's using them is done with them.
+     */
+    @Override
+    public void close() {
+        synchronized(this) {
+            if(closed) {
+                return;
+            }
+            closed = true;
+            ready.clear();
+            if(!working) {
+                // nothing is going to notice, so start something that will
+                working = true;
+                executor.execute(this::work);
+            }
+        }
+        base.close();
     }
 
     @Override
@@ -52,28 +255,348 @@ public class SortingCursor implements Cursor {
         base.setFilter(filter);
     }
 
-    private void sort() throws DeserializationException {
-        List<Row> input = new ArrayList<>();
+    @Override
+    public void setProjection(Collection<Column> columns) {
+        // we also need whatever we're sorting by
+        List<Column> needed = new ArrayList<>(columns);
+        for(Expression e : fields) {
+            e.collectColumns(needed);
+        }
+        base.setProjection(needed);
+    }
+
+    // must be called with the lock held
+    private void checkError() throws DeserializationException {
+        if(error == null) {
+            return;
+        }
+        if(error instanceof DeserializationException) {
+            throw (DeserializationException) error;
+        }
+        throw new IllegalStateException("background sort failed", error);
+    }
+
+    // must be called with the lock held
+    private void startWork() {
+        if(working || done || error != null || closed) {
+            return;
+        }
+        working = true;
+        executor.execute(this::work);
+    }
+
+    /**
+     * Does the next piece of the sort on the executor: collects whatever rows the base cursor has ready and sorts them
+     * once it has run out, then queues up the sorted rows a batch at a time. Once the cursor is closed, has failed or
+     * has handed everything over, it cleans up instead.
+     */
+    private void work() {
+        List<Row> batch = new ArrayList<>();
+        boolean waiting = false;
+        boolean end = false;
+        Throwable failure = null;
+        if(!isClosed()) {
+            try {
+                if(!sorted) {
+                    waiting = !sort();
+                }
+                if(sorted) {
+                    end = takeSorted(batch);
+                }
+            } catch(Throwable t) {
+                failure = t;
+            }
+        }
+
+        boolean cleanUp;
+        CompletableFuture<Void> w = null;
+        synchronized(this) {
+            cleanUp = closed || failure != null || end;
+            if(!closed) {
+                ready.addAll(batch);
+                done = end;
+                error = failure;
+            }
+            if(cleanUp) {
+                working = false;
+            } else if(!waiting) {
+                working = false;
+                if(ready.size() < BATCH_SIZE) {
+                    startWork(); // still running low; go straight on to the next batch
+                }
+            }
+            if(!ready.isEmpty() || done || error != null || closed) {
+                w = waiter;
+                waiter = null;
+            }
+        }
+
+        if(cleanUp) {
+            deleteRuns();
+        } else if(waiting) {
+            // carry on once the base cursor has more; until then this still counts as working
+            base.await().whenComplete((v, t) -> executor.execute(this::work));
+        }
+        if(w != null) {
+            w.complete(null);
+        }
+    }
+
+    private synchronized boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Collects whatever rows the base cursor has ready, and sorts them once it has run out.
+     * @return false if the base cursor has more rows that aren't ready yet.
+     */
+    private boolean sort() throws DeserializationException, IOException {
         while(!base.isAtEnd()) {
-            input.add(base.getNext()); // NOTE: not safe for async
-        }
-
-        input.sort((a, b) -> {
-            for(Expression e : fields) {
-                if(e.getType() instanceof IntegerDataType) {
-                    long r = e.evaluateAsInteger(a) - e.evaluateAsInteger(b);
-                    if(r > 0) { return 1; }
-                    if(r < 0) { return -1; }
-                } else if(e.getType() instanceof StringDataType) {
-                    String aStr = (String) e.evaluate(a);
-                    String bStr = (String) e.evaluate(b);
-                    int r = aStr.compareTo(bStr);
-                    if(r != 0) { return r; }
+            Row r = base.getNext();
+            if(r == null) {
+                if(base.isAtEnd()) {
+                    break;
+                }
+                return false;
+            }
+            SortEntry e = new SortEntry(encodeSortKey(r), r, sequence++);
+            if(top != null) {
+                keepIfInTop(e);
+                continue;
+            }
+            input.add(e);
+            bufferedBytes += entrySize(e);
+            if(bufferedBytes >= memoryBudget) {
+                spill();
+            }
+        }
+
+        if(top != null) {
+            List<SortEntry> kept = new ArrayList<>(top);
+            kept.sort(Comparator.comparingLong(e -> e.sequence)); // back in arrival order, to keep the sort stable
+            top = null;
+            sortedRows = sortEntries(kept);
+        } else if(runs.isEmpty()) {
+            sortedRows = sortEntries(input);
+        } else {
+            spill();
+            startMerge();
+        }
+        input = null;
+        sorted = true;
+        return true;
+    }
+
+    /**
+     * Takes the next sorted rows: all of them if they're in memory, or the next batch of the merge.
+     * @return true once there are no more.
+     */
+    private boolean takeSorted(List<Row> batch) throws IOException {
+        if(heads == null) {
+            while(readHead < sortedRows.size()) {
+                batch.add(sortedRows.get(readHead).row);
+                sortedRows.set(readHead++, null); // let it go as soon as it's been handed out
+            }
+            return true;
+        }
+        while(batch.size() < BATCH_SIZE && !heads.isEmpty()) {
+            batch.add(takeMerged());
+        }
+        return heads.isEmpty();
+    }
+
+    /**
+     * Closes and deletes every run that's left, once nothing more will be read from them.
+     */
+    private void deleteRuns() {
+        for(RunReader r : readers) {
+            try {
+                r.close();
+            } catch(IOException e) {
+                e.printStackTrace();
+            }
+        }
+        readers.clear();
+        for(Path run : runs) {
+            try {
+                Files.deleteIfExists(run);
+            } catch(IOException e) {
+                e.printStackTrace();
+            }
+        }
+        runs.clear();
+        input = null;
+        sortedRows = null;
+        heads = null;
+    }
+
+    private static long entrySize(SortEntry e) {
+        return e.key.length + e.row.getData().limit() + ROW_OVERHEAD;
+    }
+
+    /**
+     * Keeps a row if it is among the smallest so far, dropping the largest kept row to make room.
+     */
+    private void keepIfInTop(SortEntry e) throws IOException {
+        if(top.size() < limit) {
+            top.add(e);
+            bufferedBytes += entrySize(e);
+            if(bufferedBytes >= memoryBudget) {
+                // too many to hold after all; nothing has been dropped yet, so carry on with a plain sort
+                input.addAll(top);
+                input.sort(Comparator.comparingLong(k -> k.sequence));
+                top = null;
+                spill();
+            }
+        } else if(limit > 0 && e.compareTo(top.peek()) < 0) {
+            bufferedBytes -= entrySize(top.poll());
+            top.add(e);
+            bufferedBytes += entrySize(e);
+        }
+    }
+
+    /**
+     * Sorts entries by key, stably. A least significant digit radix sort over the bytes of their prefixes puts them in
+     * order of prefix without comparing anything; then each run of entries with the same prefix is sorted by whole key.
+     */
+    private static List<SortEntry> sortEntries(List<SortEntry> input) {
+        SortEntry[] entries = input.toArray(new SortEntry[0]);
+        int n = entries.length;
+        SortEntry[] from = entries;
+        SortEntry[] to = new SortEntry[n];
+        int[] counts = new int[257];
+        for(int shift = 0; shift < 64 && n > 1; shift += 8) {
+            Arrays.fill(counts, 0);
+            for(SortEntry e : from) {
+                counts[(int) (e.prefix >>> shift & 0xFF) + 1]++;
+            }
+            if(counts[(int) (from[0].prefix >>> shift & 0xFF) + 1] == n) {
+                continue; // they all have the same byte here
+            }
+            for(int i = 0; i < 256; i++) {
+                counts[i + 1] += counts[i];
+            }
+            for(SortEntry e : from) {
+                to[counts[(int) (e.prefix >>> shift & 0xFF)]++] = e;
+            }
+            SortEntry[] swap = from;
+            from = to;
+            to = swap;
+        }
+
+        int start = 0;
+        for(int i = 1; i <= n; i++) {
+            if(i == n || from[i].prefix != from[start].prefix) {
+                if(i - start > 1) {
+                    Arrays.sort(from, start, i);
                 }
+                start = i;
             }
-            return 0;
+        }
+        return Arrays.asList(from);
+    }
+
+    // sorts what's in memory and writes it out as a run
+    private void spill() throws IOException {
+        if(input.isEmpty()) {
+            return;
+        }
+        Path run = Files.createTempFile("sort", ".run");
+        runs.add(run);
+        runLengths.add((long) input.size());
+        try(DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(Files.newOutputStream(run), STREAM_BUFFER_SIZE))) {
+            for(SortEntry e : sortEntries(input)) {
+                Row r = e.row;
+                ByteBuffer data = r.getData();
+                data.rewind();
+                out.writeInt(e.key.length);
+                out.write(e.key);
+                out.writeInt(r.getId());
+                out.writeInt(r.getDataOffset());
+                byte[] image = new byte[data.remaining()];
+                data.get(image);
+                out.writeInt(image.length);
+                out.write(image);
+            }
+        }
+        input = new ArrayList<>();
+        bufferedBytes = 0;
+    }
+
+    private void startMerge() throws IOException {
+        // earlier runs hold earlier rows, so taking from them first on ties keeps the sort stable
+        heads = new PriorityQueue<>((a, b) -> {
+            int r = a.current.compareTo(b.current);
+            return r != 0 ? r : Integer.compare(a.number, b.number);
         });
+        for(int i = 0; i < runs.size(); i++) {
+            DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(Files.newInputStream(runs.get(i)), STREAM_BUFFER_SIZE));
+            RunReader r = new RunReader(i, runs.get(i), in, runLengths.get(i));
+            readers.add(r);
+            if(r.advance()) {
+                heads.add(r);
+            }
+        }
+    }
+
+    /**
+     * Takes the smallest of the runs' heads. There must be one.
+     */
+    private Row takeMerged() throws IOException {
+        RunReader r = heads.poll();
+        Row row = r.current.row;
+        if(r.advance()) {
+            heads.add(r);
+        }
+        if(limit >= 0 && ++merged >= limit) {
+            // nothing more is wanted, so the rest of the runs can go now
+            for(RunReader unread : heads) {
+                unread.close();
+            }
+            heads.clear();
+        }
+        return row;
+    }
 
-        sortedRows = input;
+    private class RunReader {
+        private final int number;
+        private final Path path;
+        private final DataInputStream in;
+        private long remaining;
+        private SortEntry current;
+
+        public RunReader(int number, Path path, DataInputStream in, long length) {
+            this.number = number;
+            this.path = path;
+            this.in = in;
+            this.remaining = length;
+        }
+
+        /**
+         * @return false once the run is used up, at which point it is deleted.
+         */
+        public boolean advance() throws IOException {
+            if(remaining == 0) {
+                close();
+                return false;
+            }
+            remaining--;
+            byte[] key = new byte[in.readInt()];
+            in.readFully(key);
+            int id = in.readInt();
+            int dataOffset = in.readInt();
+            byte[] data = new byte[in.readInt()];
+            in.readFully(data);
+            current = new SortEntry(key, new Row(getTable(), id, ByteBuffer.wrap(data), dataOffset));
+            return true;
+        }
+
+        public void close() throws IOException {
+            current = null;
+            in.close();
+            Files.deleteIfExists(path);
+        }
     }
 }
@@ -5,54 +5,190 @@ import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 public class Table {
     /*
-    Free list scheme:
+    Free space scheme:
     Each row in the table starts with a field called the "free link". For rows that are not deleted, this field is zero.
-    For rows that are deleted, this field contains either the index of the next deleted row or -1 to indicate the end of
-    the free list.
-    At the start of the table is row 0. Row 0 is the "invalid row", and is used as the head of the free list. This means
-    that we can find an empty row by starting at row 0 and walking the linked list until we either find a row we can
-    claim or reach the end of the file, at which point we will have to extend it.
-    When we delete a row, we can insert it in the free list immediately after the head row, since it's not important
-    that the order of the free list reflect the order of the rows in the file.
+    For deleted rows it is nonzero. (Older versions of this file chained deleted rows into a linked list through this
+    field, so it may contain the index of another deleted row.)
+    At the start of the table is row 0. Row 0 is the "invalid row"; it never holds data. It used to be the head of the
+    free list, but the list is no longer maintained on disk.
+    Instead, when the table is opened we read every row's free link and build a map of free rows in memory. Claiming or
+    releasing a row then costs nothing but the write of the row itself, which is also what persists the change: the
+    map can always be rebuilt from the rows.
+
+    Write-ahead logging scheme:
+    Every insert or delete produces one log record holding the complete new images of each row it changes. The new
+    images are kept in memory, where fetch() can see them, until the record is durable; only then are they written to
+    the table file. That way the table file never contains a write whose log record could still be lost, and recovery
+    only ever has to replay the log forwards. Once the log grows large and every record in it has been applied, the
+    table file is fsynced, trailing free rows are truncated away, and the log is emptied.
+    If a durable record can't be written to the table file, or a checkpoint fails, the table stops taking writes until
+    it is reopened. The log is never emptied after that, so recovery applies whatever didn't make it.
+
+    Indexes are not logged. They are changed in place just before each record is logged, so after a crash they may be
+    missing rows that recovery brings back, or hold rows that never made it into the log. Instead, closing the table
+    checkpoints it, fsyncs its indexes and leaves a marker file next to it, and opening the table removes the marker
+    again. If the marker wasn't there, or the log still had records to replay, index files can't be trusted and have
+    to be rebuilt from the table.
+     */
+
+    /**
+     * The lowest ID a real row can have.
      */
+    public static final int FIRST_ROW_ID = 1;
 
-    private static final int FREE_LINK_FIELD_SIZE = 8;
+    static final int FREE_LINK_FIELD_SIZE = 8;
+    private static final long DELETED_LINK = -1;
+    private static final int SCAN_CHUNK_SIZE = 256 * 1024;
+    private static final long CHECKPOINT_THRESHOLD = 4 * 1024 * 1024;
     private final String name;
     private final List<Column> columns;
     private final int rowSize;
-    private FileChannel channel;
+    private final TableStorage storage;
+    private final WriteAheadLog log;
     private TableIndex primaryIndex;
+    // every index that is kept up to date with this table's rows, including the primary one
+    private final List<TableIndex> indexes = new CopyOnWriteArrayList<>();
 
-    public Table(String name, List<Column> columns) throws IOException {
+    // row images that have been logged but not yet applied to storage, keyed by row ID
+    private final Map<Integer, ByteBuffer> unappliedRows = new ConcurrentHashMap<>();
+    // records that have been logged but not yet applied to storage, in log order. guarded by this.
+    private final Queue<WriteAheadLog.Record> unappliedRecords = new ArrayDeque<>();
+    private volatile int capacity;
+    private final FreeSpaceMap freeSpace = new FreeSpaceMap(FIRST_ROW_ID);
+    private final Path cleanMarker;
+    private final boolean closedCleanly;
+    private IOException failure; // guarded by this; why logged records couldn't be applied to storage
+
+    /**
+     * How a table's file is accessed.
+     */
+    public enum StorageMode {
+        /**
+         * Positional reads and writes, cached in a {@link BufferPool}.
+         */
+        BUFFERED,
+        /**
+         * The file is mapped into memory. Best suited to tables that are mostly scanned.
+         */
+        MAPPED
+    }
+
+    private Table(String name, StorageMode mode, BufferPool pool, List<Column> columns) throws IOException {
         this.name = name;
         this.columns = columns;
+        int offset = FREE_LINK_FIELD_SIZE;
         for(int i = 0; i < this.columns.size(); i++) {
             this.columns.get(i).setPosition(i);
+            this.columns.get(i).setOffset(offset);
+            offset += this.columns.get(i).getType().getSize();
         }
         this.rowSize = columns.stream().mapToInt((c) -> c.getType().getSize()).sum() + FREE_LINK_FIELD_SIZE;
-        this.channel = FileChannel.open(FileSystems.getDefault().getPath("tables", name),
+        FileChannel channel = FileChannel.open(FileSystems.getDefault().getPath("tables", name),
                 StandardOpenOption.READ,
                 StandardOpenOption.WRITE,
                 StandardOpenOption.CREATE);
+        switch(mode) {
+            case MAPPED:
+                this.storage = new MappedTableStorage(channel);
+                break;
+            case BUFFERED:
+            default:
+                this.storage = new BufferedTableStorage(channel, pool);
+                break;
+        }
 
-        if(getCapacity() == 0) {
+        // the marker has to be gone for good before anything is written, or a crash could leave it claiming that the
+        // indexes match the table
+        this.cleanMarker = FileSystems.getDefault().getPath("tables", name + ".clean");
+        boolean marked = Files.deleteIfExists(cleanMarker);
+        if(marked) {
+            forceDirectory(cleanMarker.getParent());
+        }
+
+        this.log = new WriteAheadLog(FileSystems.getDefault().getPath("tables", name + ".wal"));
+        this.closedCleanly = recover() == 0 && marked;
+        this.log.setDurabilityListener(this::applyDurableRecords);
+
+        this.capacity = (int) (storage.size() / rowSize);
+        if(capacity == 0) {
             // this is probably a new table, so write out the free list head.
             ByteBuffer buffer = ByteBuffer.allocate(rowSize);
             buffer.putLong(-1);
             buffer.position(rowSize);
             buffer.flip();
 
-            channel.write(buffer, 0);
+            storage.write(0, buffer);
+            capacity = 1;
+        }
+        buildFreeSpaceMap();
+    }
+
+    /**
+     * Reads the free link of every row, in large sequential chunks, to find out which rows are free.
+     */
+    private void buildFreeSpaceMap() throws IOException {
+        int rowsPerChunk = Math.max(1, SCAN_CHUNK_SIZE / rowSize);
+        ByteBuffer chunk = ByteBuffer.allocate(rowsPerChunk * rowSize);
+        for(int first = FIRST_ROW_ID; first < capacity; first += rowsPerChunk) {
+            chunk.clear();
+            int count = storage.read((long) first * (long) rowSize, chunk) / rowSize;
+            for(int i = 0; i < count; i++) {
+                if(chunk.getLong(i * rowSize) != 0) {
+                    freeSpace.markFree(first + i);
+                }
+            }
+        }
+    }
+
+    /**
+     * Replays anything left in the log by a previous run that didn't shut down cleanly.
+     * @return How many records were replayed.
+     */
+    private int recover() throws IOException {
+        int replayed = log.replay(storage::write);
+        if(replayed > 0) {
+            storage.force();
+        }
+        log.truncate();
+        return replayed;
+    }
+
+    private static void forceDirectory(Path directory) throws IOException {
+        try(FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            channel.force(true);
         }
     }
 
+    public Table(String name, BufferPool pool, List<Column> columns) throws IOException {
+        this(name, StorageMode.BUFFERED, pool, columns);
+    }
+
+    public Table(String name, StorageMode mode, List<Column> columns) throws IOException {
+        this(name, mode, BufferPool.DEFAULT, columns);
+    }
+
+    /**
+     * Convenience constructor. Reads through the default buffer pool.
+     */
+    public Table(String name, List<Column> columns) throws IOException {
+        this(name, BufferPool.DEFAULT, columns);
+    }
+
     /**
      * Convenience constructor.
      */
@@ -71,87 +207,435 @@ public class Table {
         return this.rowSize;
     }
 
+    /**
+     * Sets how hard inserts and deletes try to make themselves durable before returning.
+     * @param intervalMillis How often to fsync the log under {@link WriteAheadLog.SyncPolicy#INTERVAL}.
+     */
+    public void setSyncPolicy(WriteAheadLog.SyncPolicy policy, long intervalMillis) {
+        log.setSyncPolicy(policy, intervalMillis);
+    }
+
     // returns null if row has been deleted
     public Row fetch(int id) throws DeserializationException {
-        ByteBuffer buffer = ByteBuffer.allocate(rowSize);
+        if(id < FIRST_ROW_ID) {
+            return null;
+        }
+
+        ByteBuffer buffer;
         try {
-            if(channel.read(buffer, (long) id * (long) this.rowSize) != rowSize) {
-                throw new DeserializationException(new EOFException());
-            }
+            buffer = readRowImage(id);
         } catch(IOException e) {
             throw new DeserializationException(e);
         }
 
-        buffer.flip();
-
-        long freeLink = buffer.getLong();
-        if(freeLink != 0) {
+        if(buffer.getLong(0) != 0) { // free link
             return null;
         }
 
-        List<Object> values = new ArrayList<>(columns.size());
-        for(int i = 0; i < columns.size(); i++) {
-            values.add(columns.get(i).getType().deserialize(buffer));
+        return new Row(this, id, buffer);
+    }
+
+    /**
+     * Copies the image of a row into a buffer, without allocating anything.
+     * @param dst A buffer with room for at least one row. The image is written at its current position, which is left
+     *            unchanged.
+     * @return false if the row has been deleted, in which case dst holds garbage.
+     */
+    public boolean readRow(int id, ByteBuffer dst) throws DeserializationException {
+        if(id < FIRST_ROW_ID) {
+            return false;
         }
 
-        return new Row(this, id, values);
+        int start = dst.position();
+        try {
+            ByteBuffer unapplied = unappliedRows.get(id);
+            if(unapplied != null) {
+                dst.put(unapplied.duplicate());
+            } else {
+                ByteBuffer window = dst.duplicate();
+                window.limit(start + rowSize);
+                if(storage.read((long) id * (long) this.rowSize, window) != rowSize) {
+                    throw new DeserializationException(new EOFException());
+                }
+            }
+        } catch(IOException e) {
+            throw new DeserializationException(e);
+        }
+        dst.position(start);
+
+        return dst.getLong(start) == 0; // free link
     }
 
-    private void alterLink(int id, long link) throws IOException {
-        ByteBuffer buffer = ByteBuffer.allocate(FREE_LINK_FIELD_SIZE);
-        buffer.putLong(link);
-        buffer.flip();
-        if(channel.write(buffer, (long) id * (long) this.rowSize) != FREE_LINK_FIELD_SIZE) {
-            throw new IOException("couldn't write completely (altering link[" + id + "] = " + link);
+    /**
+     * Copies the images of a run of consecutive rows into a buffer, with as few reads as possible. Deleted rows are
+     * included; check their free links.
+     * @param dst Filled with as many whole rows as fit between its position and limit. The position is left unchanged.
+     * @return How many rows were read.
+     */
+    public int readRows(int firstId, ByteBuffer dst) throws DeserializationException {
+        if(firstId < FIRST_ROW_ID) {
+            throw new IllegalArgumentException("row " + firstId + " is not a real row");
         }
+
+        int start = dst.position();
+        int count = Math.min(dst.remaining() / rowSize, capacity - firstId);
+        if(count <= 0) {
+            return 0;
+        }
+
+        try {
+            // rows that have only just been appended may not have reached storage yet; those are staged instead
+            int stored = readStoredRows(firstId, dst, start, count);
+            for(int i = 0; i < count; i++) {
+                ByteBuffer unapplied = unappliedRows.get(firstId + i);
+                if(unapplied != null) {
+                    ByteBuffer target = dst.duplicate();
+                    target.position(start + i * rowSize);
+                    target.put(unapplied.duplicate());
+                } else if(i >= stored) {
+                    // it may have been applied since storage was read
+                    stored = i + readStoredRows(firstId + i, dst, start + i * rowSize, count - i);
+                    if(i >= stored) {
+                        return i;
+                    }
+                }
+            }
+        } catch(IOException e) {
+            throw new DeserializationException(e);
+        }
+
+        return count;
     }
 
-    private long readLink(int id) throws IOException {
-        ByteBuffer buffer = ByteBuffer.allocate(FREE_LINK_FIELD_SIZE);
-        if(channel.read(buffer, (long) id * (long) this.rowSize) != FREE_LINK_FIELD_SIZE) {
+    /**
+     * @return How many whole rows, of the count asked for, were in storage.
+     */
+    private int readStoredRows(int firstId, ByteBuffer dst, int start, int count) throws IOException {
+        ByteBuffer window = dst.duplicate();
+        window.position(start);
+        window.limit(start + count * rowSize);
+        return Math.min(count, storage.read((long) firstId * (long) rowSize, window) / rowSize);
+    }
+
+    /**
+     * @return The current image of a row, including changes that have been logged but not yet applied to storage.
+     */
+    private ByteBuffer readRowImage(int id) throws IOException {
+        ByteBuffer unapplied = unappliedRows.get(id);
+        if(unapplied != null) {
+            return unapplied.duplicate();
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(rowSize);
+        if(storage.read((long) id * (long) this.rowSize, buffer) != rowSize) {
             throw new EOFException();
         }
         buffer.flip();
-        return buffer.getLong();
+        return buffer;
+    }
+
+    /**
+     * Adds the images of a run of consecutive rows to a record as a single write, and makes them visible to fetch().
+     * Must be called with the table lock held.
+     */
+    private void stageRowImages(WriteAheadLog.Record record, int firstId, byte[] images) {
+        record.addWrite((long) firstId * (long) rowSize, ByteBuffer.wrap(images));
+        for(int i = 0; i < images.length / rowSize; i++) {
+            unappliedRows.put(firstId + i, ByteBuffer.wrap(images, i * rowSize, rowSize).slice());
+        }
+    }
+
+    /**
+     * Forgets the staged images from one write of a record, unless a later record has staged newer ones.
+     */
+    private void unstageRowImages(WriteAheadLog.Record record, int i) {
+        ByteBuffer image = record.getImage(i);
+        int firstId = (int) (record.getPosition(i) / rowSize);
+        for(int id = firstId; id < firstId + image.remaining() / rowSize; id++) {
+            unappliedRows.computeIfPresent(id, (k, staged) -> staged.array() == image.array() ? null : staged);
+        }
+    }
+
+    /**
+     * Appends a staged record to the log. The caller must hold the table lock while the record is built and logged,
+     * and should then release it before waiting for the record with {@link WriteAheadLog#commit(WriteAheadLog.Record)}.
+     */
+    private void logRecord(WriteAheadLog.Record record) throws IOException {
+        synchronized(this) {
+            unappliedRecords.add(record);
+            try {
+                log.append(record);
+            } catch(IOException e) {
+                // nothing was logged, so forget the staged images
+                unappliedRecords.remove(record);
+                for(int i = 0; i < record.getWriteCount(); i++) {
+                    unstageRowImages(record, i);
+                }
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Writes every record that has become durable out to storage, in log order.
+     */
+    private synchronized void applyDurableRecords(long durableLsn) {
+        if(failure != null) {
+            return; // whatever is left stays in the log for recovery
+        }
+        try {
+            while(!unappliedRecords.isEmpty() && unappliedRecords.peek().getLsn() != 0
+                    && unappliedRecords.peek().getLsn() <= durableLsn) {
+                WriteAheadLog.Record record = unappliedRecords.peek();
+                for(int i = 0; i < record.getWriteCount(); i++) {
+                    storage.write(record.getPosition(i), record.getImage(i));
+                    unstageRowImages(record, i);
+                }
+                unappliedRecords.remove();
+            }
+
+            if(unappliedRecords.isEmpty() && log.getSize() > CHECKPOINT_THRESHOLD) {
+                checkpoint();
+            }
+        } catch(IOException e) {
+            // the records are still in the log, so recovery will apply them on the next start. until then, nothing
+            // more is written, and the log isn't emptied.
+            failure = e;
+        }
+    }
+
+    // must be called with the table lock held
+    private void checkFailure() throws IOException {
+        if(failure != null) {
+            throw new IOException("table " + name + " failed to apply its log and must be reopened", failure);
+        }
+    }
+
+    // must be called with the table lock held, and with every logged record applied
+    private void checkpoint() throws IOException {
+        storage.force();
+        truncateTable();
+        log.truncate();
     }
 
+    // must be called with the table lock held, and with every logged record applied
     private void truncateTable() throws IOException {
         // figure out how many rows we can truncate the table to.
-        int i = getCapacity();
-        while(readLink(--i) != 0) { }
-        channel.truncate((long) i * (long) rowSize);
+        int end = freeSpace.getUsedEnd(capacity);
+        if(end < capacity) {
+            storage.truncate((long) end * (long) rowSize);
+            freeSpace.truncate(end);
+            capacity = end;
+        }
+    }
+
+    /**
+     * @return false if the table wasn't closed with {@link #close()} the last time it was open, or the log had to be
+     *         replayed when it was opened. Index files made before then may not match the table, and must be rebuilt
+     *         rather than opened.
+     */
+    public boolean wasClosedCleanly() {
+        return closedCleanly;
+    }
 
-        // TODO: walk free list and remove entries that now point past the end of the table
+    /**
+     * Makes every write so far durable, checkpoints the table, fsyncs its indexes and marks it as closed cleanly. Nothing
+     * may write to the table afterwards.
+     */
+    public void close() throws IOException {
+        log.sync(log.getAppendedLsn()); // which applies every record
+        synchronized(this) {
+            checkFailure();
+            if(!unappliedRecords.isEmpty()) {
+                throw new IOException("table " + name + " has logged writes that couldn't be applied");
+            }
+            checkpoint();
+            for(TableIndex index : indexes) {
+                if(!index.isUpToDate()) {
+                    return; // it has missed writes, so it has to be rebuilt next time
+                }
+                index.force();
+            }
+            try(FileChannel marker = FileChannel.open(cleanMarker, StandardOpenOption.WRITE,
+                    StandardOpenOption.CREATE)) {
+                marker.force(true);
+            }
+            forceDirectory(cleanMarker.getParent());
+        }
     }
 
     public void deleteRow(int id) throws IOException {
-        alterLink(id, readLink(0));
-        alterLink(0, id);
+        deleteRows(Collections.singletonList(id));
     }
 
-    public Row insertRow(List<Object> values) throws IOException, SerializationException {
-        int id = (int) readLink(0);
-        if(id == -1) { // free list is empty
-            // append to table
-            id = getCapacity();
+    /**
+     * Deletes a batch of rows. The whole batch is logged as a single record, with one write for each run of
+     * consecutive IDs, and committed once. IDs of rows that are already gone are skipped.
+     * @return How many rows were deleted.
+     */
+    public int deleteRows(List<Integer> ids) throws IOException {
+        int[] sorted = ids.stream().mapToInt(Integer::intValue).sorted().distinct().toArray();
+        WriteAheadLog.Record record = new WriteAheadLog.Record();
+        int count = 0;
+        synchronized(this) {
+            checkFailure();
+            for(int id : sorted) {
+                if(id >= FIRST_ROW_ID && id < capacity && !freeSpace.isFree(id)) {
+                    sorted[count++] = id;
+                }
+            }
+            if(count == 0) {
+                return 0; // already gone
+            }
+
+            // the indices need to know what the rows held
+            List<Row> rows = new ArrayList<>(indexes.isEmpty() ? 0 : count);
+            if(!indexes.isEmpty()) {
+                for(int i = 0; i < count; i++) {
+                    rows.add(new Row(this, sorted[i], readRowImage(sorted[i])));
+                }
+            }
+            TableIndex[] targets = indexes.toArray(new TableIndex[0]);
+            updateIndexes(targets, rows, false);
+
+            for(int start = 0, end; start < count; start = end) {
+                end = start + 1;
+                while(end < count && sorted[end] == sorted[end - 1] + 1) {
+                    end++;
+                }
+                ByteBuffer images = ByteBuffer.allocate((end - start) * rowSize);
+                for(int i = 0; i < end - start; i++) {
+                    images.putLong(i * rowSize, DELETED_LINK);
+                }
+                stageRowImages(record, sorted[start], images.array());
+            }
+            try {
+                logRecord(record);
+            } catch(IOException e) {
+                revertIndexes(targets, rows, false, targets.length * rows.size(), e);
+                throw e;
+            }
+            for(int i = 0; i < count; i++) {
+                freeSpace.markFree(sorted[i]);
+            }
+        }
+        log.commit(record);
+        return count;
+    }
+
+    /**
+     * Adds rows to, or removes them from, some indexes. This happens before the change is logged, so that if an index
+     * fails the change can still be abandoned: whatever this had already done is undone, and the index that failed has
+     * marked itself out of date.
+     */
+    // must be called with the table lock held
+    private void updateIndexes(TableIndex[] targets, List<Row> rows, boolean insert) throws IOException {
+        int done = 0;
+        try {
+            for(TableIndex index : targets) {
+                for(Row r : rows) {
+                    updateIndex(index, r, insert);
+                    done++;
+                }
+            }
+        } catch(IOException | RuntimeException e) {
+            revertIndexes(targets, rows, insert, done, e);
+            throw e;
+        }
+    }
+
+    /**
+     * Undoes the first few updates made by {@link #updateIndexes(TableIndex[], List, boolean)}. An index that fails to
+     * undo one marks itself out of date, and won't be used again; its failure is added to the one being handled.
+     */
+    private void revertIndexes(TableIndex[] targets, List<Row> rows, boolean insert, int count, Exception cause) {
+        for(int i = 0; i < count; i++) {
+            try {
+                updateIndex(targets[i / rows.size()], rows.get(i % rows.size()), !insert);
+            } catch(IOException | RuntimeException e) {
+                cause.addSuppressed(e);
+            }
+        }
+    }
+
+    private void updateIndex(TableIndex index, Row r, boolean insert) throws IOException {
+        byte[] key = TableIndex.encodeKey(r.getValueForColumn(index.getColumn()));
+        if(insert) {
+            index.insert(key, r.getId(), r.serializeColumns(index.getPayloadColumns()));
         } else {
-            // remove from free list
-            alterLink(0, readLink(id));
+            index.delete(key, r.getId());
         }
+    }
 
-        Row r = new Row(this, id, values);
-        ByteBuffer buffer = ByteBuffer.allocate(rowSize);
+    public Row insertRow(List<Object> values) throws IOException, SerializationException {
+        return insertRows(Collections.singletonList(values)).get(0);
+    }
 
-        buffer.putLong(0); // free link
-        r.serialize(buffer);
+    /**
+     * Inserts a batch of rows into a run of consecutive row IDs. The whole batch is serialized into one buffer, logged
+     * as a single record, and written to the table file with a single write.
+     * @return The inserted rows, in the same order as the values.
+     */
+    public List<Row> insertRows(List<List<Object>> rowValues) throws IOException, SerializationException {
+        if(rowValues.isEmpty()) {
+            return Collections.emptyList();
+        }
 
-        buffer.flip();
+        WriteAheadLog.Record record = new WriteAheadLog.Record();
+        List<Row> rows = new ArrayList<>(rowValues.size());
+        synchronized(this) {
+            checkFailure();
+            int count = rowValues.size();
+            int firstId = freeSpace.allocateRun(count);
+            boolean appended = firstId == -1;
+            if(appended) { // no free run big enough
+                // append to table
+                firstId = capacity;
+                capacity += count;
+            }
+
+            try {
+                ByteBuffer buffer = ByteBuffer.allocate(count * rowSize);
+                for(int i = 0; i < count; i++) {
+                    buffer.position(i * rowSize);
+                    buffer.putLong(0); // free link
+                    serializeValues(rowValues.get(i), buffer);
+                    rows.add(new Row(this, firstId + i, ByteBuffer.wrap(buffer.array(), i * rowSize, rowSize).slice()));
+                }
 
-        if(channel.write(buffer, (long) id * (long) this.rowSize) != this.rowSize) {
-            throw new IOException("couldn't write completely");
+                TableIndex[] targets = indexes.toArray(new TableIndex[0]);
+                updateIndexes(targets, rows, true);
+                stageRowImages(record, firstId, buffer.array());
+                try {
+                    logRecord(record);
+                } catch(IOException e) {
+                    revertIndexes(targets, rows, true, targets.length * rows.size(), e);
+                    throw e;
+                }
+            } catch(IOException | SerializationException | RuntimeException e) {
+                // give the rows back, whatever went wrong, or an append would leave a hole
+                if(appended && firstId + count == capacity) {
+                    capacity = firstId;
+                } else {
+                    for(int i = 0; i < count; i++) {
+                        freeSpace.markFree(firstId + i);
+                    }
+                }
+                throw e;
+            }
         }
+        log.commit(record);
 
-        return r;
+        return rows;
+    }
+
+    private void serializeValues(List<Object> values, ByteBuffer buffer) throws SerializationException {
+        if(values.size() != columns.size()) {
+            throw new SerializationException();
+        }
+        for(int i = 0; i < columns.size(); i++) {
+            columns.get(i).getType().serialize(buffer, values.get(i));
+        }
     }
 
     public FullScanCursor createFullTableScanCursor() {
@@ -159,11 +643,7 @@ public class Table {
     }
 
     public int getCapacity() {
-        try {
-            return (int) (channel.size() / rowSize);
-        } catch(IOException e) {
-            return 0;
-        }
+        return capacity;
     }
 
     public List<Column> getColumns() {
@@ -176,5 +656,24 @@ public class Table {
 
     public void setPrimaryIndex(TableIndex index) {
         primaryIndex = index;
+        addIndex(index);
+    }
+
+    /**
+     * Registers an index to be kept up to date as rows are inserted and deleted. It must already hold every row in the
+     * table; see {@link #wasClosedCleanly()}.
+     */
+    public void addIndex(TableIndex index) {
+        if(!indexes.contains(index)) {
+            indexes.add(index);
+        }
+    }
+
+    public List<TableIndex> getIndexes() {
+        return indexes;
+    }
+
+    public TableIndex getPrimaryIndex() {
+        return primaryIndex;
     }
 }
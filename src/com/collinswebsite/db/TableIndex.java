@@ -1,4 +1,160 @@
 package com.collinswebsite.db;
 
+import com.collinswebsite.db.types.BooleanDataType;
+import com.collinswebsite.db.types.DataType;
+import com.collinswebsite.db.types.StringDataType;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PrimitiveIterator;
+
+/**
+ * Maps the values of one column to the IDs of the rows that hold them.
+ *
+ * Keys are column values encoded with {@link #encodeKey(Object)}, and are ordered by comparing their bytes unsigned.
+ * A key may map to any number of rows.
+ *
+ * An index may also store the values of some other columns, its payload, in each entry. A query that only reads the
+ * key and payload columns can then be answered from the index alone, without fetching any rows.
+ */
 public interface TableIndex {
+    class Entry {
+        public final byte[] key;
+        public final long value;
+        // the serialized values of the payload columns, one after another. null if the index has no payload.
+        public final byte[] payload;
+
+        public Entry(byte[] key, long value) {
+            this(key, value, null);
+        }
+
+        public Entry(byte[] key, long value, byte[] payload) {
+            this.key = key;
+            this.value = value;
+            this.payload = payload;
+        }
+    }
+
+    /**
+     * @return The column whose values this index is keyed on.
+     */
+    Column getColumn();
+
+    /**
+     * @return The columns whose values are stored in each entry, in the order their values appear in the payload.
+     */
+    default List<Column> getPayloadColumns() {
+        return Collections.emptyList();
+    }
+
+    /**
+     * @return Every entry with exactly this key.
+     */
+    default Iterator<Entry> lookup(byte[] key) throws DeserializationException, IOException {
+        return range(key, true, key, true);
+    }
+
+    /**
+     * @param lower The smallest key to return, or null to start from the smallest key in the index.
+     * @param upper The largest key to return, or null to carry on to the largest key in the index.
+     * @return Every entry with a key in the range, in key order.
+     */
+    Iterator<Entry> range(byte[] lower, boolean lowerInclusive, byte[] upper, boolean upperInclusive)
+            throws DeserializationException, IOException;
+
+    /**
+     * @return The values of every entry with a key in the range, in key order. Indexes that can find these without
+     *         building an {@link Entry} for each one should override this.
+     */
+    default PrimitiveIterator.OfLong rangeValues(byte[] lower, boolean lowerInclusive,
+                                                 byte[] upper, boolean upperInclusive)
+            throws DeserializationException, IOException {
+        Iterator<Entry> entries = range(lower, lowerInclusive, upper, upperInclusive);
+        return new PrimitiveIterator.OfLong() {
+            @Override
+            public boolean hasNext() {
+                return entries.hasNext();
+            }
+
+            @Override
+            public long nextLong() {
+                return entries.next().value;
+            }
+        };
+    }
+
+    void insert(byte[] key, long value) throws IOException;
+
+    /**
+     * Inserts an entry along with its payload, as built by {@link Row#serializeColumns(List)} from the payload columns.
+     * Indexes that don't store a payload ignore it.
+     */
+    default void insert(byte[] key, long value, byte[] payload) throws IOException {
+        insert(key, value);
+    }
+
+    /**
+     * Removes the entry that maps this key to this row. Other rows with the same key are left alone.
+     */
+    void delete(byte[] key, long value) throws IOException;
+
+    /**
+     * @return Roughly how many entries the index holds.
+     */
+    long estimateCardinality();
+
+    /**
+     * @return false if the index has missed writes to its table, in which case it must not be used to answer queries.
+     */
+    boolean isUpToDate();
+
+    /**
+     * Makes every change made to the index so far durable.
+     */
+    void force() throws IOException;
+
+    /**
+     * Encodes a column value so that comparing the encodings bytewise, unsigned, orders them the same way as the
+     * values themselves.
+     */
+    static byte[] encodeKey(Object value) {
+        if(value instanceof String) {
+            return ((String) value).getBytes(StandardCharsets.UTF_8);
+        }
+        if(value instanceof Long) {
+            // flip the sign bit so that negative numbers come first
+            return ByteBuffer.allocate(8).putLong((Long) value ^ Long.MIN_VALUE).array();
+        }
+        if(value instanceof Boolean) {
+            return new byte[] { (byte) ((Boolean) value ? 1 : 0) };
+        }
+        throw new IllegalArgumentException("can't index " + value);
+    }
+
+    /**
+     * Turns a key encoded by {@link #encodeKey(Object)} back into the value it came from.
+     */
+    static Object decodeKey(byte[] key, DataType type) {
+        if(type instanceof StringDataType) {
+            return new String(key, StandardCharsets.UTF_8);
+        }
+        if(type instanceof BooleanDataType) {
+            return key[0] != 0;
+        }
+        return ByteBuffer.wrap(key).getLong() ^ Long.MIN_VALUE;
+    }
+
+    /**
+     * @return The longest key {@link #encodeKey(Object)} can produce for a value of this type.
+     */
+    static int getMaxKeyLength(DataType type) {
+        if(type instanceof StringDataType) {
+            return type.getSize() - 4; // strings are stored with their length in front
+        }
+        return type.getSize();
+    }
 }
@@ -0,0 +1,28 @@
+package com.collinswebsite.db;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Positional access to the bytes of a table file.
+ */
+public interface TableStorage {
+    /**
+     * @return How many bytes were copied into dst. This is less than dst.remaining() only at the end of the file.
+     */
+    int read(long position, ByteBuffer dst) throws IOException;
+
+    /**
+     * @return How many bytes were written. Writing past the end of the file extends it.
+     */
+    int write(long position, ByteBuffer src) throws IOException;
+
+    long size() throws IOException;
+
+    void truncate(long size) throws IOException;
+
+    /**
+     * Makes every write so far durable.
+     */
+    void force() throws IOException;
+}
@@ -0,0 +1,367 @@
+package com.collinswebsite.db;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongConsumer;
+import java.util.zip.CRC32;
+
+/**
+ * A redo log of physical writes.
+ *
+ * Each record holds the complete images of every write made by one operation, so replaying a record is idempotent and
+ * an operation is either entirely in the log or not in it at all. Records are framed as
+ * [payload length][CRC32 of payload][payload], and the payload is a sequence of [file position][length][bytes].
+ * Recovery stops at the first record that is incomplete or fails its checksum.
+ *
+ * Positions in the log are identified by LSNs, which keep increasing across checkpoints even though the file itself is
+ * truncated back to zero.
+ *
+ * If an fsync of the log fails, there's no telling how much of it reached the disk, and a later fsync that succeeds
+ * doesn't prove the earlier writes did. So the failure is kept, and every append and commit after it fails too; the
+ * log has to be reopened, and whatever is intact replayed, before it can be used again.
+ */
+public class WriteAheadLog {
+    private static final int RECORD_HEADER_SIZE = 4 + 4;
+    private static final int WRITE_HEADER_SIZE = 8 + 4;
+
+    private static final ScheduledExecutorService syncScheduler = Executors.newSingleThreadScheduledExecutor((r) -> {
+        Thread t = new Thread(r, "wal-sync");
+        t.setDaemon(true);
+        return t;
+    });
+
+    public enum SyncPolicy {
+        /**
+         * Every commit waits until its record has been fsynced. Writers that commit while an fsync is in progress all
+         * share the next one.
+         */
+        ALWAYS,
+        /**
+         * The log is fsynced in the background on a fixed interval. A crash can lose the last interval of commits.
+         */
+        INTERVAL,
+        /**
+         * The log is only fsynced at checkpoints.
+         */
+        NEVER
+    }
+
+    /**
+     * A set of writes that must become durable together.
+     */
+    public static class Record {
+        private final List<Long> positions = new ArrayList<>();
+        private final List<ByteBuffer> images = new ArrayList<>();
+        private long lsn;
+
+        public void addWrite(long position, ByteBuffer image) {
+            positions.add(position);
+            images.add(image.duplicate());
+        }
+
+        public int getWriteCount() {
+            return positions.size();
+        }
+
+        public long getPosition(int i) {
+            return positions.get(i);
+        }
+
+        public ByteBuffer getImage(int i) {
+            return images.get(i).duplicate();
+        }
+
+        /**
+         * @return The LSN of the end of this record, once it has been appended.
+         */
+        public long getLsn() {
+            return lsn;
+        }
+
+        private int getPayloadSize() {
+            int size = 0;
+            for(ByteBuffer image : images) {
+                size += WRITE_HEADER_SIZE + image.remaining();
+            }
+            return size;
+        }
+    }
+
+    public interface WriteHandler {
+        void apply(long position, ByteBuffer image) throws IOException;
+    }
+
+    private final FileChannel channel;
+    private SyncPolicy policy = SyncPolicy.ALWAYS;
+    private ScheduledFuture<?> intervalTask;
+    private LongConsumer durabilityListener = (lsn) -> { };
+
+    // guarded by this
+    private long base = 0; // LSN of the start of the file
+    private long appendedLsn = 0;
+
+    // guarded by syncLock
+    private final Object syncLock = new Object();
+    private long durableLsn = 0;
+    private boolean syncing = false;
+    private IOException failure; // the first fsync that failed
+
+    public WriteAheadLog(Path path) throws IOException {
+        this.channel = FileChannel.open(path,
+                StandardOpenOption.READ,
+                StandardOpenOption.WRITE,
+                StandardOpenOption.CREATE);
+    }
+
+    public synchronized void setSyncPolicy(SyncPolicy policy, long intervalMillis) {
+        if(intervalTask != null) {
+            intervalTask.cancel(false);
+            intervalTask = null;
+        }
+        this.policy = policy;
+        if(policy == SyncPolicy.INTERVAL) {
+            intervalTask = syncScheduler.scheduleWithFixedDelay(() -> {
+                try {
+                    sync(getAppendedLsn());
+                } catch(IOException e) {
+                    // the failure is kept, and the next append or commit fails with it
+                }
+            }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    public synchronized SyncPolicy getSyncPolicy() {
+        return policy;
+    }
+
+    /**
+     * Registers a callback that is invoked, on whichever thread made it so, every time more of the log becomes
+     * durable. It receives the new durable LSN.
+     */
+    public void setDurabilityListener(LongConsumer listener) {
+        this.durabilityListener = listener;
+    }
+
+    public synchronized long getAppendedLsn() {
+        return appendedLsn;
+    }
+
+    public long getDurableLsn() {
+        synchronized(syncLock) {
+            return durableLsn;
+        }
+    }
+
+    /**
+     * @return How many bytes the log file currently holds.
+     */
+    public synchronized long getSize() {
+        return appendedLsn - base;
+    }
+
+    /**
+     * Appends a record to the log. The record is not necessarily durable yet; see {@link #commit(Record)}.
+     */
+    public long append(Record record) throws IOException {
+        checkFailure();
+        // the images are written straight out of the caller's buffers with one gathering write, rather than being
+        // copied into a single log buffer first.
+        int payloadSize = record.getPayloadSize();
+        ByteBuffer[] buffers = new ByteBuffer[1 + record.getWriteCount() * 2];
+        CRC32 crc = new CRC32();
+        for(int i = 0; i < record.getWriteCount(); i++) {
+            ByteBuffer image = record.getImage(i);
+            ByteBuffer writeHeader = ByteBuffer.allocate(WRITE_HEADER_SIZE);
+            writeHeader.putLong(record.getPosition(i));
+            writeHeader.putInt(image.remaining());
+            writeHeader.flip();
+            crc.update(writeHeader.duplicate());
+            crc.update(image.duplicate());
+            buffers[1 + i * 2] = writeHeader;
+            buffers[2 + i * 2] = image;
+        }
+        ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+        header.putInt(payloadSize);
+        header.putInt((int) crc.getValue());
+        header.flip();
+        buffers[0] = header;
+
+        long lsn;
+        synchronized(this) {
+            channel.position(appendedLsn - base);
+            long remaining = RECORD_HEADER_SIZE + payloadSize;
+            while(remaining > 0) {
+                remaining -= channel.write(buffers);
+            }
+            appendedLsn += RECORD_HEADER_SIZE + payloadSize;
+            lsn = appendedLsn;
+        }
+        record.lsn = lsn;
+
+        if(getSyncPolicy() == SyncPolicy.NEVER) {
+            markDurable(lsn);
+        }
+        return lsn;
+    }
+
+    /**
+     * Waits until a record is as durable as the sync policy requires. Under {@link SyncPolicy#ALWAYS} this blocks
+     * until the record has been fsynced; otherwise it returns immediately.
+     */
+    public void commit(Record record) throws IOException {
+        checkFailure();
+        if(getSyncPolicy() == SyncPolicy.ALWAYS) {
+            sync(record.getLsn());
+        }
+    }
+
+    /**
+     * Makes everything up to the given LSN durable. Only one thread fsyncs at a time; threads that arrive while an
+     * fsync is in progress wait for it, and if it didn't cover them, one of them issues the next one on behalf of all
+     * the others.
+     */
+    public void sync(long lsn) throws IOException {
+        synchronized(syncLock) {
+            while(true) {
+                if(durableLsn >= lsn) {
+                    return;
+                }
+                if(failure != null) {
+                    throw new IOException("write-ahead log failed to sync", failure);
+                }
+                if(!syncing) {
+                    break;
+                }
+                try {
+                    syncLock.wait();
+                } catch(InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException();
+                }
+            }
+            syncing = true;
+        }
+
+        long target = getAppendedLsn();
+        boolean synced = false;
+        try {
+            channel.force(false);
+            synced = true;
+        } catch(IOException e) {
+            synchronized(syncLock) {
+                if(failure == null) {
+                    failure = e;
+                }
+            }
+            throw e;
+        } finally {
+            synchronized(syncLock) {
+                syncing = false;
+                if(synced && target > durableLsn) {
+                    durableLsn = target;
+                }
+                syncLock.notifyAll();
+            }
+        }
+        durabilityListener.accept(target);
+    }
+
+    /**
+     * Throws if an fsync of the log has ever failed.
+     */
+    private void checkFailure() throws IOException {
+        synchronized(syncLock) {
+            if(failure != null) {
+                throw new IOException("write-ahead log failed to sync", failure);
+            }
+        }
+    }
+
+    private void markDurable(long lsn) {
+        synchronized(syncLock) {
+            if(lsn <= durableLsn) {
+                return;
+            }
+            durableLsn = lsn;
+        }
+        durabilityListener.accept(lsn);
+    }
+
+    /**
+     * Replays every intact record in the log, in order.
+     * @return How many records were replayed.
+     */
+    public int replay(WriteHandler handler) throws IOException {
+        int count = 0;
+        long position = 0;
+        long size = channel.size();
+        ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+        while(position + RECORD_HEADER_SIZE <= size) {
+            header.clear();
+            if(readFully(header, position) != RECORD_HEADER_SIZE) {
+                break;
+            }
+            header.flip();
+            int payloadSize = header.getInt();
+            int checksum = header.getInt();
+            if(payloadSize < 0 || position + RECORD_HEADER_SIZE + payloadSize > size) {
+                break; // torn record at the tail
+            }
+
+            ByteBuffer payload = ByteBuffer.allocate(payloadSize);
+            if(readFully(payload, position + RECORD_HEADER_SIZE) != payloadSize) {
+                break;
+            }
+            CRC32 crc = new CRC32();
+            crc.update(payload.array(), 0, payloadSize);
+            if((int) crc.getValue() != checksum) {
+                break;
+            }
+
+            payload.flip();
+            while(payload.hasRemaining()) {
+                long writePosition = payload.getLong();
+                int length = payload.getInt();
+                ByteBuffer image = payload.slice();
+                image.limit(length);
+                payload.position(payload.position() + length);
+                handler.apply(writePosition, image);
+            }
+
+            position += RECORD_HEADER_SIZE + payloadSize;
+            count++;
+        }
+        return count;
+    }
+
+    private int readFully(ByteBuffer dst, long position) throws IOException {
+        int total = 0;
+        while(dst.hasRemaining()) {
+            int n = channel.read(dst, position + total);
+            if(n <= 0) {
+                break;
+            }
+            total += n;
+        }
+        return total;
+    }
+
+    /**
+     * Throws away the contents of the log. The caller must have made every logged write durable elsewhere first.
+     */
+    public synchronized void truncate() throws IOException {
+        channel.truncate(0);
+        channel.force(false);
+        base = appendedLsn;
+    }
+}
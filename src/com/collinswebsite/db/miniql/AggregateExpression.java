@@ -0,0 +1,66 @@
+package com.collinswebsite.db.miniql;
+
+import com.collinswebsite.db.Column;
+import com.collinswebsite.db.Row;
+import com.collinswebsite.db.types.DataType;
+import com.collinswebsite.db.types.DoubleDataType;
+import com.collinswebsite.db.types.IntegerDataType;
+
+import java.util.Collection;
+
+/**
+ * An aggregate function over a column, or over whole rows for COUNT(*). It has no value for a single row; it is worked
+ * out over a group of them by an {@link com.collinswebsite.db.AggregatingCursor}.
+ */
+public class AggregateExpression implements Expression {
+    public enum Function {
+        COUNT, SUM, MIN, MAX, AVG
+    }
+
+    private final Function function;
+    private final Column column; // null for COUNT(*)
+
+    public AggregateExpression(Function function, Column column) {
+        this.function = function;
+        this.column = column;
+    }
+
+    public Function getFunction() {
+        return function;
+    }
+
+    public Column getColumn() {
+        return column;
+    }
+
+    public String getName() {
+        return function + "(" + (column == null ? "*" : column.getName()) + ")";
+    }
+
+    @Override
+    public DataType getType() {
+        return function == Function.AVG ? DoubleDataType.DEFAULT : IntegerDataType.DEFAULT;
+    }
+
+    @Override
+    public Object evaluate(Row r) {
+        throw new IllegalStateException("can't evaluate " + getName() + " on a single row");
+    }
+
+    @Override
+    public void validate() throws InvalidExpressionException {
+        if(column == null && function != Function.COUNT) {
+            throw new InvalidExpressionException("can't take " + function + " of *");
+        }
+        if(column != null && function != Function.COUNT && !(column.getType() instanceof IntegerDataType)) {
+            throw new InvalidExpressionException("can't take " + function + " of " + column.getType().getName());
+        }
+    }
+
+    @Override
+    public void collectColumns(Collection<Column> columns) {
+        if(column != null) {
+            columns.add(column);
+        }
+    }
+}
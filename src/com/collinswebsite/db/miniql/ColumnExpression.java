@@ -6,6 +6,8 @@ import com.collinswebsite.db.types.BooleanDataType;
 import com.collinswebsite.db.types.DataType;
 import com.collinswebsite.db.types.IntegerDataType;
 
+import java.util.Collection;
+
 public class ColumnExpression implements Expression {
     private final Column column;
 
@@ -13,6 +15,10 @@ public class ColumnExpression implements Expression {
         this.column = column;
     }
 
+    public Column getColumn() {
+        return column;
+    }
+
     @Override
     public DataType getType() {
         return column.getType();
@@ -26,7 +32,7 @@ public class ColumnExpression implements Expression {
     @Override
     public long evaluateAsInteger(Row r) {
         if(column.getType() instanceof IntegerDataType) {
-            return (Long) evaluate(r);
+            return r.getLongForColumn(column);
         } else {
             return Expression.super.evaluateAsInteger(r);
         }
@@ -45,4 +51,18 @@ public class ColumnExpression implements Expression {
     public void validate() throws InvalidExpressionException {
 
     }
+
+    @Override
+    public void collectColumns(Collection<Column> columns) {
+        columns.add(column);
+    }
+
+    @Override
+    public SerializedPredicate toSerializedPredicate() {
+        if(!(column.getType() instanceof BooleanDataType)) {
+            return null;
+        }
+        int offset = column.getOffset();
+        return (buffer, row) -> buffer.get(row + offset) != 0;
+    }
 }
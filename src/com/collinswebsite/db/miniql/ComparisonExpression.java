@@ -1,10 +1,18 @@
 package com.collinswebsite.db.miniql;
 
+import com.collinswebsite.db.Column;
 import com.collinswebsite.db.Row;
 import com.collinswebsite.db.types.BooleanDataType;
 import com.collinswebsite.db.types.DataType;
+import com.collinswebsite.db.types.IntegerDataType;
+import com.collinswebsite.db.types.StringDataType;
 import org.antlr.v4.runtime.misc.ParseCancellationException;
 
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
 public class ComparisonExpression implements Expression {
     private Expression left;
     private Operator operator;
@@ -25,6 +33,20 @@ public class ComparisonExpression implements Expression {
         public boolean canCompare(DataType left, DataType right) {
             return left.isComparable(right);
         }
+
+        /**
+         * @return The operator that gives the same result with its operands swapped.
+         */
+        public Operator mirror() {
+            switch(this) {
+                case LESS_THAN:
+                    return GREATER_THAN;
+                case GREATER_THAN:
+                    return LESS_THAN;
+                default:
+                    return this;
+            }
+        }
     }
 
     public ComparisonExpression(Expression left, Operator op, Expression right) {
@@ -45,6 +67,22 @@ public class ComparisonExpression implements Expression {
 
     @Override
     public boolean evaluateAsBoolean(Row r) {
+        if(left.getType() instanceof IntegerDataType) {
+            switch(operator) {
+                case EQUAL:
+                    return left.evaluateAsInteger(r) == right.evaluateAsInteger(r);
+                case NOT_EQUAL:
+                    return left.evaluateAsInteger(r) != right.evaluateAsInteger(r);
+            }
+        }
+        if(left.getType() instanceof StringDataType) {
+            switch(operator) {
+                case LESS_THAN:
+                    return StringDataType.compare((String) left.evaluate(r), (String) right.evaluate(r)) < 0;
+                case GREATER_THAN:
+                    return StringDataType.compare((String) left.evaluate(r), (String) right.evaluate(r)) > 0;
+            }
+        }
         switch(operator) {
             case LESS_THAN:
                 return left.evaluateAsInteger(r) < right.evaluateAsInteger(r);
@@ -58,6 +96,135 @@ public class ComparisonExpression implements Expression {
         throw new IllegalStateException("invalid operator");
     }
 
+    public Expression getLeft() {
+        return left;
+    }
+
+    public Operator getOperator() {
+        return operator;
+    }
+
+    public Expression getRight() {
+        return right;
+    }
+
+    @Override
+    public void collectColumns(Collection<Column> columns) {
+        left.collectColumns(columns);
+        right.collectColumns(columns);
+    }
+
+    /**
+     * Compiles this comparison into a tree of lambdas, each specialized for its operator and for where its operands
+     * come from, so that nothing is boxed or dispatched on per row. Comparisons that don't read any columns are worked
+     * out once, here.
+     */
+    @Override
+    public SerializedPredicate toSerializedPredicate() {
+        DataType type = left.getType();
+        if(type instanceof BooleanDataType && operator != Operator.EQUAL && operator != Operator.NOT_EQUAL) {
+            return null; // booleans have no order
+        }
+
+        List<Column> columns = new ArrayList<>();
+        collectColumns(columns);
+        if(columns.isEmpty()) {
+            boolean result = evaluateAsBoolean(null);
+            return (buffer, row) -> result;
+        }
+
+        if(type instanceof BooleanDataType) {
+            SerializedPredicate l = left.toSerializedPredicate();
+            SerializedPredicate r = right.toSerializedPredicate();
+            if(l == null || r == null) {
+                return null;
+            }
+            if(operator == Operator.EQUAL) {
+                return (buffer, row) -> l.test(buffer, row) == r.test(buffer, row);
+            }
+            return (buffer, row) -> l.test(buffer, row) != r.test(buffer, row);
+        }
+
+        Operator op = operator;
+        Expression columnSide = left;
+        Expression otherSide = right;
+        if(!(columnSide instanceof ColumnExpression)) {
+            columnSide = right;
+            otherSide = left;
+            op = op.mirror();
+        }
+        if(!(columnSide instanceof ColumnExpression)) {
+            return null;
+        }
+
+        int offset = ((ColumnExpression) columnSide).getColumn().getOffset();
+        if(otherSide instanceof ColumnExpression) {
+            return compareColumns(type, op, offset, ((ColumnExpression) otherSide).getColumn().getOffset());
+        }
+
+        if(type instanceof IntegerDataType && otherSide instanceof IntegerLiteral) {
+            long value = ((IntegerLiteral) otherSide).getValue();
+            switch(op) {
+                case LESS_THAN:
+                    return (buffer, row) -> buffer.getLong(row + offset) < value;
+                case GREATER_THAN:
+                    return (buffer, row) -> buffer.getLong(row + offset) > value;
+                case EQUAL:
+                    return (buffer, row) -> buffer.getLong(row + offset) == value;
+                case NOT_EQUAL:
+                    return (buffer, row) -> buffer.getLong(row + offset) != value;
+            }
+        }
+
+        if(type instanceof StringDataType && otherSide instanceof StringLiteral) {
+            byte[] value = ((StringLiteral) otherSide).getValue().getBytes(StandardCharsets.UTF_8);
+            switch(op) {
+                case LESS_THAN:
+                    return (buffer, row) -> StringDataType.compareSerialized(buffer, row + offset, value) < 0;
+                case GREATER_THAN:
+                    return (buffer, row) -> StringDataType.compareSerialized(buffer, row + offset, value) > 0;
+                case EQUAL:
+                    return (buffer, row) -> StringDataType.equalsSerialized(buffer, row + offset, value);
+                case NOT_EQUAL:
+                    return (buffer, row) -> !StringDataType.equalsSerialized(buffer, row + offset, value);
+            }
+        }
+
+        return null;
+    }
+
+    private static SerializedPredicate compareColumns(DataType type, Operator op, int offset, int otherOffset) {
+        if(type instanceof IntegerDataType) {
+            switch(op) {
+                case LESS_THAN:
+                    return (buffer, row) -> buffer.getLong(row + offset) < buffer.getLong(row + otherOffset);
+                case GREATER_THAN:
+                    return (buffer, row) -> buffer.getLong(row + offset) > buffer.getLong(row + otherOffset);
+                case EQUAL:
+                    return (buffer, row) -> buffer.getLong(row + offset) == buffer.getLong(row + otherOffset);
+                case NOT_EQUAL:
+                    return (buffer, row) -> buffer.getLong(row + offset) != buffer.getLong(row + otherOffset);
+            }
+        }
+
+        if(type instanceof StringDataType) {
+            switch(op) {
+                case LESS_THAN:
+                    return (buffer, row) ->
+                            StringDataType.compareSerialized(buffer, row + offset, row + otherOffset) < 0;
+                case GREATER_THAN:
+                    return (buffer, row) ->
+                            StringDataType.compareSerialized(buffer, row + offset, row + otherOffset) > 0;
+                case EQUAL:
+                    return (buffer, row) -> StringDataType.equalsSerialized(buffer, row + offset, row + otherOffset);
+                case NOT_EQUAL:
+                    return (buffer, row) -> !StringDataType.equalsSerialized(buffer, row + offset, row + otherOffset);
+            }
+        }
+
+        return null;
+    }
+
     @Override
     public void validate() throws InvalidExpressionException {
         left.validate();
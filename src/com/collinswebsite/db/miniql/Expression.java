@@ -1,8 +1,11 @@
 package com.collinswebsite.db.miniql;
 
+import com.collinswebsite.db.Column;
 import com.collinswebsite.db.Row;
 import com.collinswebsite.db.types.DataType;
 
+import java.util.Collection;
+
 public interface Expression {
     DataType getType();
 
@@ -18,4 +21,20 @@ public interface Expression {
     default void validate() throws InvalidExpressionException {
 
     }
+
+    /**
+     * Adds every column this expression reads to a collection.
+     */
+    default void collectColumns(Collection<Column> columns) {
+
+    }
+
+    /**
+     * Compiles a validated boolean expression into a test that runs directly against serialized rows, reading column
+     * values in place instead of decoding and boxing them.
+     * @return The predicate, or null if this expression can't be compiled.
+     */
+    default SerializedPredicate toSerializedPredicate() {
+        return null;
+    }
 }
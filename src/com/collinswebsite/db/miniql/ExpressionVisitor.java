@@ -23,15 +23,15 @@ public class ExpressionVisitor extends MiniQLBaseVisitor<Expression> {
     @Override
     public Expression visitComparisonExpression(MiniQLParser.ComparisonExpressionContext ctx) {
         return new ComparisonExpression(
-                visitChildren(ctx.left),
+                visit(ctx.left),
                 ComparisonExpression.getOperator(ctx.op),
-                visitChildren(ctx.right)
+                visit(ctx.right)
                 );
     }
 
     @Override
     public Expression visitParenExpression(MiniQLParser.ParenExpressionContext ctx) {
-        return visitChildren(ctx);
+        return visit(ctx.expression());
     }
 
     @Override
@@ -11,6 +11,10 @@ public class IntegerLiteral implements Expression {
         this.value = value;
     }
 
+    public long getValue() {
+        return value;
+    }
+
     @Override
     public DataType getType() {
         return IntegerDataType.DEFAULT;
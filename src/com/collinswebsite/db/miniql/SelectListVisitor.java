@@ -0,0 +1,50 @@
+package com.collinswebsite.db.miniql;
+
+import com.collinswebsite.db.Column;
+import com.collinswebsite.db.Table;
+import org.antlr.v4.runtime.misc.ParseCancellationException;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Collects what a SELECT asks for: each item is either a {@link ColumnExpression} or an {@link AggregateExpression}.
+ */
+public class SelectListVisitor extends MiniQLBaseVisitor<List<Expression>> {
+    private final Table table;
+    private List<Expression> list = new ArrayList<>();
+
+    public SelectListVisitor(Table table) {
+        this.table = table;
+    }
+
+    @Override
+    public List<Expression> visitSelectList(MiniQLParser.SelectListContext ctx) {
+        visit(ctx.selectItem());
+        if(ctx.selectList() != null) {
+            visitSelectList(ctx.selectList());
+        }
+        return list;
+    }
+
+    @Override
+    public List<Expression> visitColumnItem(MiniQLParser.ColumnItemContext ctx) {
+        list.add(new ColumnExpression(getColumn(ctx.columnName())));
+        return list;
+    }
+
+    @Override
+    public List<Expression> visitAggregateItem(MiniQLParser.AggregateItemContext ctx) {
+        AggregateExpression.Function function = AggregateExpression.Function.valueOf(ctx.function.getText());
+        list.add(new AggregateExpression(function, ctx.columnName() == null ? null : getColumn(ctx.columnName())));
+        return list;
+    }
+
+    private Column getColumn(MiniQLParser.ColumnNameContext ctx) {
+        Column c = table.getColumn(ctx.IDENTIFIER().toString());
+        if(c == null) {
+            throw new ParseCancellationException("no such column in table '" + table.getName() + "': " + ctx.IDENTIFIER().toString());
+        }
+        return c;
+    }
+}
@@ -0,0 +1,13 @@
+package com.collinswebsite.db.miniql;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A filter that runs directly against a serialized row, so that rows it rejects never have to be materialized.
+ */
+public interface SerializedPredicate {
+    /**
+     * @param row The offset at which the row image (starting with its free link) begins in the buffer.
+     */
+    boolean test(ByteBuffer buffer, int row);
+}
@@ -11,6 +11,10 @@ public class StringLiteral implements Expression {
         this.value = value;
     }
 
+    public String getValue() {
+        return value;
+    }
+
     @Override
     public DataType getType() {
         return StringDataType.DEFAULT;
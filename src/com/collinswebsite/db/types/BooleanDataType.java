@@ -13,6 +13,11 @@ public class BooleanDataType implements DataType {
         return buffer.get() != 0;
     }
 
+    @Override
+    public Object deserialize(ByteBuffer buffer, int offset) {
+        return buffer.get(offset) != 0;
+    }
+
     @Override
     public void serialize(ByteBuffer buffer, Object o) throws SerializationException {
         buffer.put((byte) ((Boolean) o ? 1 : 0));
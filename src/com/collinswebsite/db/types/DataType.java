@@ -10,6 +10,12 @@ import java.nio.ByteBuffer;
  */
 public interface DataType {
     Object deserialize(ByteBuffer buffer) throws DeserializationException;
+
+    /**
+     * Decodes a value at an absolute offset, without moving the buffer's position.
+     * @throws IllegalStateException if the serialized value is corrupt.
+     */
+    Object deserialize(ByteBuffer buffer, int offset);
     void serialize(ByteBuffer buffer, Object o) throws SerializationException;
     int getSize();
 
@@ -0,0 +1,40 @@
+package com.collinswebsite.db.types;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Only used for computed results, such as averages; there are no double columns or literals.
+ */
+public class DoubleDataType implements DataType {
+    public static final DoubleDataType DEFAULT = new DoubleDataType();
+
+    @Override
+    public Object deserialize(ByteBuffer buffer) {
+        return buffer.getDouble();
+    }
+
+    @Override
+    public Object deserialize(ByteBuffer buffer, int offset) {
+        return buffer.getDouble(offset);
+    }
+
+    @Override
+    public void serialize(ByteBuffer buffer, Object o) {
+        buffer.putDouble((Double) o);
+    }
+
+    @Override
+    public int getSize() {
+        return 8;
+    }
+
+    @Override
+    public boolean isComparable(DataType other) {
+        return other instanceof DoubleDataType;
+    }
+
+    @Override
+    public String getName() {
+        return "double";
+    }
+}
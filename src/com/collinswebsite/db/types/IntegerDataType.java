@@ -10,6 +10,11 @@ public class IntegerDataType implements DataType {
         return buffer.getLong();
     }
 
+    @Override
+    public Object deserialize(ByteBuffer buffer, int offset) {
+        return buffer.getLong(offset);
+    }
+
     @Override
     public void serialize(ByteBuffer buffer, Object o) {
         buffer.putLong((Long) o);
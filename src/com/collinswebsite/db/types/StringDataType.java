@@ -5,6 +5,7 @@ import com.collinswebsite.db.SerializationException;
 
 import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 
 public class StringDataType implements DataType {
     public static final StringDataType DEFAULT = new StringDataType(-1);
@@ -28,16 +29,102 @@ public class StringDataType implements DataType {
         return new String(bytes, StandardCharsets.UTF_8);
     }
 
+    @Override
+    public Object deserialize(ByteBuffer buffer, int offset) {
+        int length = buffer.getInt(offset);
+        if(length < 0 || length > maximumLength) {
+            throw new IllegalStateException("corrupt string length: " + length);
+        }
+
+        if(buffer.hasArray()) {
+            return new String(buffer.array(), buffer.arrayOffset() + offset + 4, length, StandardCharsets.UTF_8);
+        }
+        byte bytes[] = new byte[length];
+        ByteBuffer src = buffer.duplicate();
+        src.position(offset + 4);
+        src.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Compares a serialized string against some UTF-8 bytes without decoding it.
+     */
+    public static boolean equalsSerialized(ByteBuffer buffer, int offset, byte[] value) {
+        if(buffer.getInt(offset) != value.length) {
+            return false;
+        }
+        for(int i = 0; i < value.length; i++) {
+            if(buffer.get(offset + 4 + i) != value[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Orders strings by their UTF-8 bytes, compared unsigned. This is the order indices keep their keys in.
+     */
+    public static int compare(String a, String b) {
+        return Arrays.compareUnsigned(a.getBytes(StandardCharsets.UTF_8), b.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Compares two serialized strings in the same buffer without decoding them.
+     */
+    public static boolean equalsSerialized(ByteBuffer buffer, int offset, int otherOffset) {
+        int length = buffer.getInt(offset);
+        if(buffer.getInt(otherOffset) != length) {
+            return false;
+        }
+        for(int i = 0; i < length; i++) {
+            if(buffer.get(offset + 4 + i) != buffer.get(otherOffset + 4 + i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Compares two serialized strings in the same buffer without decoding them, in the same order as
+     * {@link #compare(String, String)}.
+     */
+    public static int compareSerialized(ByteBuffer buffer, int offset, int otherOffset) {
+        int length = buffer.getInt(offset);
+        int otherLength = buffer.getInt(otherOffset);
+        for(int i = 0; i < length && i < otherLength; i++) {
+            int r = (buffer.get(offset + 4 + i) & 0xFF) - (buffer.get(otherOffset + 4 + i) & 0xFF);
+            if(r != 0) {
+                return r;
+            }
+        }
+        return length - otherLength;
+    }
+
+    /**
+     * Compares a serialized string against some UTF-8 bytes without decoding it, in the same order as
+     * {@link #compare(String, String)}.
+     */
+    public static int compareSerialized(ByteBuffer buffer, int offset, byte[] value) {
+        int length = buffer.getInt(offset);
+        for(int i = 0; i < length && i < value.length; i++) {
+            int r = (buffer.get(offset + 4 + i) & 0xFF) - (value[i] & 0xFF);
+            if(r != 0) {
+                return r;
+            }
+        }
+        return length - value.length;
+    }
+
     @Override
     public void serialize(ByteBuffer buffer, Object o) throws SerializationException {
-        String s = (String) o;
-        if(s.length() > maximumLength) {
+        byte[] bytes = ((String) o).getBytes(StandardCharsets.UTF_8);
+        if(bytes.length > maximumLength) {
             throw new SerializationException();
         }
 
-        buffer.putInt(s.length());
-        buffer.put(s.getBytes());
-        buffer.position(buffer.position() + maximumLength - s.length()); // skip the rest of the field
+        buffer.putInt(bytes.length);
+        buffer.put(bytes);
+        buffer.position(buffer.position() + maximumLength - bytes.length); // skip the rest of the field
     }
 
     @Override